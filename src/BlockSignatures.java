@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/**
+ * Signatures of a range of a file cut into packet sized blocks, for delta transfers: block
+ * i is the payload of seqN i, so a block that matches is already in place at the receiver.
+ * A signature is the block's CRC32 and CRC32C side by side, 64 bits that both ends compute
+ * at memory speed. That catches accidental change, not a crafted collision. The digest of
+ * all of them stands in for a whole-file hash.
+ */
+public class BlockSignatures {
+
+	private static final int READ_BUDGET = 4*1024*1024;
+
+	// reads the range with positional reads, leaving the channel's position alone
+	public static long[] of (FileChannel fc, long offset, long length, int blockSize) throws IOException {
+		final long blocks = (length + blockSize - 1) / blockSize;
+		if (blocks > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("too many blocks to sign: " + blocks);
+		}
+		final long[] sigs = new long[(int)blocks];
+		final ByteBuffer buf = ByteBuffer.allocateDirect(Math.max(1, READ_BUDGET / blockSize) * blockSize);
+		final CRC32 crc = new CRC32();
+		final CRC32C crcc = new CRC32C();
+		long pos = 0;
+		int block = 0;
+		while (pos < length) {
+			buf.clear();
+			if (length - pos < buf.capacity()) {
+				buf.limit((int)(length - pos));
+			}
+			while (buf.hasRemaining()) {
+				if (fc.read(buf, offset + pos + buf.position()) < 0) {
+					break; // the rest reads as zeros, as a file extended by setLength would
+				}
+			}
+			while (buf.hasRemaining()) {
+				buf.put((byte)0);
+			}
+			final int n = buf.position();
+			for (int at = 0; at < n; at += blockSize) { // whole blocks, but for the last one
+				buf.limit(Math.min(at + blockSize, n)).position(at);
+				crc.reset();
+				crc.update(buf);
+				buf.position(at);
+				crcc.reset();
+				crcc.update(buf);
+				sigs[block++] = crc.getValue() << 32 | crcc.getValue();
+			}
+			pos += n;
+		}
+		return sigs;
+	}
+
+	// the first 8 bytes of a SHA-256 over all the signatures, in order
+	public static long digest (long[] sigs) {
+		try {
+			final MessageDigest sha = MessageDigest.getInstance("SHA-256");
+			final ByteBuffer buf = ByteBuffer.allocate(8*1024);
+			for (long sig : sigs) {
+				if (!buf.hasRemaining()) {
+					buf.flip();
+					sha.update(buf);
+					buf.clear();
+				}
+				buf.putLong(sig);
+			}
+			buf.flip();
+			sha.update(buf);
+			return ByteBuffer.wrap(sha.digest()).getLong();
+		} catch (NoSuchAlgorithmException e) { // every JDK has it
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed slab of direct buffers, carved from one allocation up front, handed out by one
+ * thread and returned in batches by another. The free list is a ring with a volatile
+ * head and tail, so neither side takes a lock. Memory use is the slab, whatever the
+ * transfer size.
+ */
+public class BufferPool {
+
+	private static final long WAIT_NANOS = 50*1000; // taker polls this often when the pool is dry
+
+	private final ByteBuffer[] free; // ring of free buffers
+	private final int mask;
+	private final int count;
+	private final int bufferSize;
+	private volatile long head; // next to take, written by the taker only
+	private volatile long tail; // next free slot, written by the releaser only
+	private long lowest; // fewest free buffers seen by take
+	private long waits; // times take found the pool dry
+
+	public BufferPool (int count, int bufferSize) {
+		this.count = count;
+		this.bufferSize = bufferSize;
+		free = new ByteBuffer[Integer.highestOneBit(Math.max(1, count - 1)) << 1];
+		mask = free.length - 1;
+		final ByteBuffer slab = ByteBuffer.allocateDirect(count * bufferSize);
+		for (int i = 0; i < count; i++) {
+			slab.limit((i + 1) * bufferSize).position(i * bufferSize);
+			free[i] = slab.slice();
+		}
+		head = 0;
+		tail = count;
+		lowest = count;
+		waits = 0;
+	}
+
+	// taker only. waits for a release if every buffer is out.
+	public ByteBuffer take () {
+		final long h = head;
+		long available = tail - h;
+		if (available == 0) {
+			waits++;
+			do {
+				LockSupport.parkNanos(WAIT_NANOS);
+				available = tail - h;
+			} while (available == 0);
+		}
+		if (available - 1 < lowest) {
+			lowest = available - 1;
+		}
+		final ByteBuffer b = free[(int)(h & mask)];
+		head = h + 1;
+		b.clear();
+		return b;
+	}
+
+	// taker only. null instead of waiting if every buffer is out
+	public ByteBuffer poll () {
+		if (tail == head) {
+			waits++;
+			return null;
+		}
+		return take();
+	}
+
+	// releaser only. returns bufs[0, len) in one publication.
+	public void release (ByteBuffer[] bufs, int len) {
+		final long t = tail;
+		for (int i = 0; i < len; i++) {
+			free[(int)((t + i) & mask)] = bufs[i];
+			bufs[i] = null;
+		}
+		tail = t + len;
+	}
+
+	public long slabBytes () {
+		return (long)count * bufferSize;
+	}
+	public int count () {
+		return count;
+	}
+	// taker's view
+	public long lowestFree () {
+		return lowest;
+	}
+	public long waits () {
+		return waits;
+	}
+}
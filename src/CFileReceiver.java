@@ -3,116 +3,283 @@ import static java.net.StandardSocketOptions.*;
 import java.io.*;
 import java.nio.charset.*;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.*;
+import java.nio.file.*;
 import java.nio.ByteOrder;
 import java.util.*;
-import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
 
 public class FileReceiver {
 
 	// misc
 	private static final Charset CHARSET_NET = StandardCharsets.UTF_8;
-	private final CRC32 CHECKSUM; // ALL CHECKSUMS CAST TO 32 BIT INT
-	private static final int CHECKSUM_SIZE = 4;
-	private static final int CTRL_INDEX = 4;
+	private final PacketCodec CODEC; // frames and checks pkts for the main thread, see PacketCodec
+	public static final int CTRL_INDEX = 4;
 	private static final int HEADER_DATA_INDEX = 5;
 
-	// SYN: 4B CRC, 1B 0xFF(syn), 4B NUMPKT
-	private static final int SYN_HEADER_SIZE = 9;
+	// SYN: 4B CRC, 1B 0xFF(syn), 8B FILESIZE, 4B DATASIZE, 1B RANGES, 1B RANGE, 1B KIND, 1B FLAGS,
+	// 8B SOURCE, 4B SESSION. SOURCE identifies the source file's contents, see Checkpoint.source
+	private static final int SYN_HEADER_SIZE = 33;
+	private static final byte KIND_DIR = 1; // FILESIZE counts the manifest plus every file, see Manifest
+	private static final byte KIND_DELTA = 2; // a file, sending only the blocks that differ from the destination
+	private static final byte FLAG_DEFLATE = 1; // payloads may be deflated, see DATA
+	private static final byte FLAG_FEC = 2; // parity follows each group of pkts, see PARITY
+	private static final byte FLAG_CRC32C = 4; // CRC32C checksums after the SACK, see PacketCodec
 
-	// SACK: 4B CRC, 1B CTRL, 1B RESULT
+	// PROBE: 4B CRC, 1B 0x2(probe), 4B SIZE, padding. echoed as 4B CRC, 1B 0x2, 4B SIZE received
+	private static final byte CTRL_PRB = 2;
+	private static final int PROBE_ACK_SIZE = 9;
+	private static final int MAX_DATAGRAM = 65507;
+
+	// delta: SIG asks for block signatures as 4B CRC, 1B 0x3(sig), 8B FIRST, and is answered
+	// with 4B CRC, 1B 0x3, 8B FIRST, 8B DIGEST (of all of them), as many as fit * 8B SIGNATURE.
+	// HOLD says a run of seqNs is unchanged: 4B CRC, 1B 0x4(hold), 8B FIRST, 8B END, ACKed as data
+	private static final byte CTRL_SIG = 3;
+	private static final byte CTRL_HLD = 4;
+	private static final int HOLD_SIZE = 21;
+
+	// SACK: 4B CRC, 1B CTRL, 1B RESULT (-1, or flags of what was agreed). a success goes on with
+	// what the receiver already holds of a resumed transfer, as an ACK body: 8B FLOOR,
+	// 1B NUMRANGES, NUMRANGES * (4B START, 4B END)
 	private static final int SACK_SIZE = 6;
-	private static final int ACK_SIZE = 9;
+	private static final byte RESULT_SIGNATURES = 1; // delta signatures are ready
+	private static final byte RESULT_DEFLATE = 2; // deflated payloads are taken
+	private static final byte RESULT_FEC = 4; // parity is used
+	private static final byte RESULT_CRC32C = 8; // CRC32C checksums from here on
+
+	// ACK: 4B CRC, 1B 0x0(ack), 8B FLOOR, 1B NUMRANGES, NUMRANGES * (4B START, 4B END) from FLOOR,
+	// 1B NUMDUPS, NUMDUPS * 8B SEQN arrived again since the last ACK
+	private static final int ACK_HEADER_SIZE = 5;
+	public static final int ACK_MAX_SIZE = ACK_HEADER_SIZE + SackTracker.HEADER_SIZE
+			+ SackTracker.MAX_RANGES * SackTracker.RANGE_SIZE + SackTracker.DUPS_SIZE;
 	private static final int FIN_SIZE = 5;
 
-	// DATA: 4B CRC, 1B 0x0(data), 4B seqnum 
-	private static final int HEADER_SIZE = 9;
-	private static final int DATA_SIZE = 991;
-	private static final int PACKET_SIZE = 1000;
+	// DATA: 4B CRC, 1B 0x0(data), 8B seqnum 
+	// with deflate agreed, a payload shorter than its packet's block (see FileRange) is that
+	// block deflated on its own
+	private static final int HEADER_SIZE = 13;
+	private int DATA_SIZE; // from the SYN
+	// PARITY: 4B CRC, 1B 0x5(parity), 8B FIRST, 1B K, 1B M, 1B INDEX, parity of the raw blocks
+	// of seqNs [FIRST, FIRST+K), see Fec
+	private static final byte CTRL_PAR = 5;
+	private static final int PARITY_HEADER_SIZE = 16;
 	private static final byte CTRL_FIN = -1;		
-	private static final byte CTRL_DAT = 0;			
+	public static final byte CTRL_DAT = 0;			
 	private static final byte CTRL_SYN = 1;
 
 	// File IO
-	private int PKTS_EXPECTED;
+	private long FILE_SIZE;
+	private FileRange RANGE; // the part of the file this session receives
+	private long PKTS_EXPECTED;
 	private String DST_FILE_PATH;
 	private FileChannel FILECHANNEL;
+	private Checkpoint CHECKPOINT; // what is on disk, so a new transfer of the same file can resume. not for bundles
+	// a directory arrives as one stream, its manifest then its files, and is unpacked in order
+	private boolean BUNDLE;
+	// delta: the destination is updated in place. it is signed block by block at SYN time, and
+	// the sender sends only the blocks that differ, holding the rest. positional writes only
+	private boolean DELTA;
+	private long[] SIGNATURES;
+	private long DIGEST;
+	// deflated payloads are inflated off the receive path: by the writer for ordered writes,
+	// and for positional ones by INFLATER, which the lanes hand copies to and which places
+	// them itself. a copy that finds no buffer is dropped unACKed, the sender resends it
+	private boolean DEFLATE;
+	private static final int INFLATE_BUDGET = 4*1024*1024;
+	private static final ByteBuffer INFLATE_STOP = ByteBuffer.allocate(0);
+	private BufferPool DEFLATED; // seqN then payload. taken under SEQUENCER, released by INFLATER
+	private ArrayBlockingQueue<ByteBuffer> INFLATE_QUEUE;
+	private Thread INFLATER;
+	// CRC32C for every pkt after the SACK, if the sender asks. every thread's codec switches
+	// before its first such pkt. not for the selector server, whose loop checks all sessions'
+	private boolean CRC32C;
+	// fec: parity pkts are held by group, under SEQUENCER, till a group has as many as it
+	// misses. the lane that completes one rebuilds it from MEMBERS, so FEC means positional
+	// writes. the oldest group goes when more than PENDING_GROUPS wait
+	private boolean FEC;
+	private static final int PENDING_GROUPS = 16;
+	// fec: a copy of every pkt placed, zero padded, in a ring of slots by seqN. MEMBER_SEQN
+	// tags each slot, under SEQUENCER. a group whose members are no longer all here, such as
+	// ones held by a delta or written before a resume, is left to retransmission
+	private static final int MEMBER_BUDGET = 8*1024*1024;
+	private byte[] MEMBERS;
+	private long[] MEMBER_SEQN;
+	private int MEMBER_MASK;
+	private final ArrayDeque<PendingParity> PENDING = new ArrayDeque<PendingParity>();
+	private final ArrayDeque<PendingParity> SPARE_PARITY = new ArrayDeque<PendingParity>();
+	private long REBUILT;
+	// split transfers: every range is its own session on its own socket, all bound to
+	// LISTEN_PORT with SO_REUSEPORT. the session that takes a range first binds a fresh
+	// listener for the next one, then connects, and the kernel routes its sender to it
+	private static final Map<String, Claim> RANGES_TAKEN = new HashMap<String, Claim>(); // by destination, till all are taken
+	private static final Queue<Thread> LISTENERS = new ArrayDeque<Thread>(); // started, not yet joined, under RANGES_TAKEN
+	// positional: each payload is written at seqN * DATA_SIZE as it arrives, no reordering in memory.
+	// mmap: the same, but copied into a mapping of the destination, a window of pkts at a time
+	private static final String WRITE_MODE = System.getProperty("rft.write", "ordered");
+	private boolean MAPPED; // rft.write, bundles are always ordered
+	private boolean POSITIONAL;
+	private static final int MAP_BUDGET = 64*1024*1024;
+	private int MAP_WINDOW; // pkts, rft.mmap.window or as many as fit MAP_BUDGET
+	private static final boolean MAP_FORCE = System.getProperty("rft.mmap.flush", "window").equals("window");
+	// mmap only. windows are mapped on first pkt and dropped once complete, so only those
+	// overlapping the ACK window are live: a ring of them, indexed by window number
+	private MappedByteBuffer[] WINDOWS;
+	private int[] WINDOW_FILLED;
+	private int WINDOWS_MAPPED;
 
 	// Net IO
 	private SocketAddress SND_ADDR;
 	private final int LISTEN_PORT;
 	private final DatagramChannel UDP_CHANNEL;
-	private final ByteBuffer SACK_SUCCESS; // 
+	private ByteBuffer SACK_SUCCESS; // once the resume point is known
 	private final ByteBuffer SACK_FAIL;
 
 	// OTHERS
 	// Remember to flip/clear/rewind packets if pooling packets
-	private static final int WRITE_BUF_SIZE = 4*1024;
-	private static final int CACHE_MAX = 4*1024;
-	private final AtomicInteger SEQNUM_FLOOR;
-	private final Object SEQN_FLOOR_LOCK; // for SEQNUM_FLOOR/CACHEMAP race condition
-	private final Map<Integer, ByteBuffer> CACHEMAP;
-	private final Semaphore SEM_WRITE;
+	private static final int ACK_WINDOW = 16*1024; // seqNs above the floor reported in ACKs
+	// payloads live in the reorder ring, the writer's buffer, or the one being received into,
+	// so those are sized from the payload size to keep the slab near SLAB_BUDGET
+	private static final int SLAB_BUDGET = 20*1024*1024;
+	private int WRITE_BUF_SIZE; // at most 4K
+	private int CACHE_MAX; // seqNs held above the write floor, at most ACK_WINDOW
+	private BufferPool PAYLOADS;
+	private final SackTracker RECEIVED;
+	// ACKs are coalesced: flushed every ACK_EVERY packets or ACK_DELAY_US, or at once on a gap
+	private static final int ACK_EVERY = Integer.getInteger("rft.ack.every", 16);
+	private static final long ACK_DELAY_US = Long.getLong("rft.ack.delay", 200);
+	private AckThread ACKER;
+	private Thread ACK_THREAD;
+	private ReorderRing<ByteBuffer> CACHEMAP; // its floor is the next seqN to write
 	private Thread WRITER_THREAD;
-	private int PKTS_RECEIVED;
+	private long PKTS_RECEIVED;
+	// lanes read the one socket in turn and verify checksums in parallel. placing a verified
+	// pkt (reorder ring or file, ACK tracker, payload pool) is serialised on SEQUENCER
+	private static final int LANES = Integer.getInteger("rft.lanes", 1);
+	private final Object SEQUENCER = new Object();
+	private Thread[] LANE_THREADS;
+	private final CountDownLatch COMPLETE = new CountDownLatch(1);
+	private volatile boolean DONE; // every pkt is in
+	private volatile boolean FIN_ACKED; // seen by a leftover lane during the FIN exchange
+	// receiver server. selector: every sender is a session of its own on one channel driven
+	// by a Selector loop, ordered writes only, run on a shared writer pool. threads: every
+	// transfer takes the listener like a range does and binds the next, then runs on its own
+	// threads (virtual ones with rft.threads=virtual) as blocking sequential code
+	private static final String SERVER = System.getProperty("rft.server", "");
+	private static final boolean THREADED_SERVER = SERVER.equals("threads");
+	private static final int SERVER_WRITERS = Integer.getInteger("rft.server.writers", 4);
+	private static final int SESSION_SLAB_BUDGET = 4*1024*1024; // per session, there may be many
+	private final boolean SERVED;
+	private int SESSION_ID; // from the SYN
+	private long SOURCE; // from the SYN, a checkpoint only resumes the same source
+	private WriterThread WRITER;
 
 	public static void main (String[] args) throws Exception {
 		if (args.length != 1) {
 			log("Format: FileReceiver <listening port> <optional rcv buffer size in kilopkts>");
 			return;
 		}
+		if (SERVER.equals("selector")) {
+			new Server(Integer.parseInt(args[0])).run();
+			return;
+		}
+		if (Threads.virtual()) {
+			log("virtual threads");
+		}
 
 		FileReceiver receiver = new FileReceiver(args);
 		receiver.sync(); // sync calls initialise.
 		receiver.receiveLoop().finish();
+		awaitListeners(); // further ranges, or on a threaded server every later transfer
+	}
+
+	// virtual threads do not keep the JVM up, so main waits out every listener takeRange started.
+	// each is queued by the one before it while that one still runs, so an empty queue means done
+	private static void awaitListeners () throws InterruptedException {
+		while (true) {
+			final Thread next;
+			synchronized (RANGES_TAKEN) {
+				next = LISTENERS.poll();
+			}
+			if (next == null) {
+				return;
+			}
+			next.join();
+		}
 	}
 
 	public FileReceiver (String[] args) throws Exception {
+		this(Integer.parseInt(args[0]));
+	}
 
-		// set up listening channel
-		LISTEN_PORT = Integer.parseInt(args[0]);
-		UDP_CHANNEL = DatagramChannel.open().setOption(SO_RCVBUF, 40*1024*1024);
-		log("RCVBUF: " + UDP_CHANNEL.getOption(SO_RCVBUF));
-		UDP_CHANNEL.bind(new InetSocketAddress(LISTEN_PORT));
-		UDP_CHANNEL.configureBlocking(true);
+	public FileReceiver (int port) throws Exception {
+		this(listen(port), port, null);
+	}
+
+	// sender is set for a session of the receiver server, which owns the channel
+	private FileReceiver (DatagramChannel channel, int port, SocketAddress sender) {
+
+		LISTEN_PORT = port;
+		UDP_CHANNEL = channel;
+		SERVED = sender != null;
+		SND_ADDR = sender;
 
 		// misc
-		CHECKSUM = new CRC32();
-		CACHEMAP = new HashMap<>();
-		SEM_WRITE = new Semaphore(0);
-		SEQNUM_FLOOR = new AtomicInteger(0);
+		CODEC = new PacketCodec();
+		RECEIVED = new SackTracker(ACK_WINDOW);
 		PKTS_RECEIVED = 0;
-		SEQN_FLOOR_LOCK = new Object();
-
-		// prepare SACK_SUCCESS pkt
-		SACK_SUCCESS = ByteBuffer.allocateDirect(SACK_SIZE);
-		CHECKSUM.reset();
-		CHECKSUM.update(CTRL_SYN);
-		CHECKSUM.update(0);
-		SACK_SUCCESS.putInt((int)CHECKSUM.getValue()).put(CTRL_SYN).flip();
-		// SACK_SUCCESS pkt ready
 
 		// prepare SACK_FAIL
-		SACK_FAIL = ByteBuffer.allocateDirect(SACK_SIZE);
-		CHECKSUM.reset();
-		CHECKSUM.update(CTRL_SYN);
-		CHECKSUM.update(-1);
-		SACK_FAIL.putInt((int)CHECKSUM.getValue()).put(CTRL_SYN).put((byte)-1).flip();
+		SACK_FAIL = CODEC.sack(ByteBuffer.allocateDirect(SACK_SIZE), (byte)-1, null);
 		log("New FileReceiver created.\n");
 	}
 
+	// set up listening channel
+	private static DatagramChannel listen (int port) throws IOException {
+		final DatagramChannel channel = DatagramChannel.open().setOption(SO_RCVBUF, 40*1024*1024);
+		log("RCVBUF: " + channel.getOption(SO_RCVBUF));
+		if (channel.supportedOptions().contains(SO_REUSEPORT)) {
+			channel.setOption(SO_REUSEPORT, true); // for split transfers
+		}
+		channel.bind(new InetSocketAddress(port));
+		channel.configureBlocking(true);
+		return channel;
+	}
+
 	// 
 	public FileReceiver sync() throws Exception {
 		log("Syncing...");
 
-		final ByteBuffer syn = ByteBuffer.allocate(PACKET_SIZE);
+		final ByteBuffer syn = ByteBuffer.allocate(MAX_DATAGRAM);
+		final ByteBuffer probeAck = ByteBuffer.allocate(PROBE_ACK_SIZE);
 		while (true) {
+			syn.clear();
 			SND_ADDR = UDP_CHANNEL.receive(syn);
 			syn.flip();
 			if (!isCorrupted(syn)) {
-				parseSYN(syn);
+				if (syn.get(CTRL_INDEX) == CTRL_PRB) { // path MTU probe, echo the size that arrived
+					CODEC.begin(probeAck, CTRL_PRB).putInt(syn.limit());
+					UDP_CHANNEL.send(CODEC.seal(probeAck), SND_ADDR);
+					continue;
+				}
+				if (syn.get(CTRL_INDEX) != CTRL_SYN) {
+					continue;
+				}
+				if (!parseSYN(syn)) {
+					log("Malformed SYN received, returning SACK_FAIL");
+					UDP_CHANNEL.send(SACK_FAIL, SND_ADDR);
+					SACK_FAIL.rewind();
+					continue;
+				}
+				if (!takeRange()) {
+					continue; // another session has it
+				}
+				log("SYN parsed : Num pkts expected = " + PKTS_EXPECTED + " of " + DATA_SIZE + " bytes, path = " + DST_FILE_PATH
+						+ (RANGE.count > 1 ? ", range " + RANGE.index + " of " + RANGE.count + " at " + RANGE.offset : ""));
 				break;
 			} else {
 				log("Corrupted SYN received, returning SACK_FAIL");
@@ -120,110 +287,1079 @@ public class FileReceiver {
 				SACK_FAIL.rewind();
 			}
 		}
+		if (CRC32C) {
+			CODEC.useCrc32c();
+			log("checksums: CRC32C");
+		}
 		initialise();
 		log("Syncing succeeded!\n");
 		UDP_CHANNEL.write(SACK_SUCCESS); // after init 
 		SACK_SUCCESS.rewind();
 		return this;
 	}
-	private void parseSYN (ByteBuffer syn) {
-		syn.position(5);
-		PKTS_EXPECTED = syn.getInt();
+	// false, touching nothing, for a SYN whose fields no sender would send. it passed its
+	// checksum, so it is a peer's mistake, and the server must outlive it
+	private boolean parseSYN (ByteBuffer syn) {
+		if (syn.limit() <= SYN_HEADER_SIZE) { // the path is at least a byte
+			return false;
+		}
+		final long fileSize = syn.getLong(HEADER_DATA_INDEX);
+		final int dataSize = syn.getInt(HEADER_DATA_INDEX + 8);
+		final int ranges = syn.get(HEADER_DATA_INDEX + 12) & 0xFF;
+		final int range = syn.get(HEADER_DATA_INDEX + 13) & 0xFF;
+		if (fileSize < 0 || dataSize < 1 || dataSize > MAX_DATAGRAM - HEADER_SIZE
+				|| ranges < 1 || ranges > FileRange.MAX_RANGES || range >= ranges
+				|| fileSize / dataSize >= Long.MAX_VALUE / FileRange.MAX_RANGES) { // range offsets stay in a long
+			return false;
+		}
+		syn.position(HEADER_DATA_INDEX + 14);
+		FILE_SIZE = fileSize;
+		DATA_SIZE = dataSize;
+		RANGE = new FileRange(FILE_SIZE, DATA_SIZE, ranges, range);
+		PKTS_EXPECTED = RANGE.packets(DATA_SIZE);
+		final byte kind = syn.get();
+		BUNDLE = kind == KIND_DIR;
+		DELTA = kind == KIND_DELTA && !SERVED; // the selector server writes in order
+		final byte flags = syn.get();
+		DEFLATE = (flags & FLAG_DEFLATE) != 0;
+		FEC = (flags & FLAG_FEC) != 0 && !BUNDLE && !SERVED;
+		CRC32C = (flags & FLAG_CRC32C) != 0 && !SERVED;
+		SOURCE = syn.getLong();
+		SESSION_ID = syn.getInt();
+		MAPPED = !BUNDLE && !SERVED && !DELTA && WRITE_MODE.equals("mmap");
+		POSITIONAL = MAPPED || !BUNDLE && !SERVED && (DELTA || FEC || WRITE_MODE.equals("positional"));
 		final byte[] pathBytes = new byte[syn.limit()-syn.position()];
 		syn.get(pathBytes);
 		DST_FILE_PATH = new String(pathBytes, CHARSET_NET);
 		syn.rewind();
-		log("SYN parsed : Num pkts expected = " + PKTS_EXPECTED + ", path = " + DST_FILE_PATH);
+		return true;
+	}
+	// claims the SYN's range for this session. the first SYN of a transfer sizes the
+	// destination, and while ranges are left (always, on a threaded server), a new listener
+	// is bound before this session connects away
+	private boolean takeRange () throws Exception {
+		synchronized (RANGES_TAKEN) {
+			Claim taken = RANGES_TAKEN.get(DST_FILE_PATH);
+			if (taken == null || taken.session != SESSION_ID) { // new transfer, maybe over an old one
+				if (BUNDLE) {
+					new File(DST_FILE_PATH).mkdirs();
+				} else if (Checkpoint.INTERVAL > 0
+						&& Checkpoint.load(DST_FILE_PATH, FILE_SIZE, DATA_SIZE, RANGE, SOURCE) != null) {
+					log("resuming " + DST_FILE_PATH); // keeps what is there, each range finds its own checkpoint
+				} else {
+					Checkpoint.discard(DST_FILE_PATH); // they would describe bytes truncated here
+					final RandomAccessFile dst = new RandomAccessFile(DST_FILE_PATH, "rw");
+					if (!DELTA) { // the old copy is what a delta builds on
+						dst.setLength(0);
+					}
+					dst.setLength(FILE_SIZE); // preallocate, ranges and positional writes land in place
+					dst.close();
+				}
+				taken = new Claim(SESSION_ID, RANGE.count);
+				RANGES_TAKEN.put(DST_FILE_PATH, taken);
+			} else if (taken.ranges.get(RANGE.index)) {
+				return false;
+			}
+			taken.ranges.set(RANGE.index);
+			final boolean rangesLeft = taken.ranges.cardinality() < RANGE.count;
+			if (!rangesLeft && !THREADED_SERVER) { // a threaded server keeps it, to turn away resent SYNs
+				RANGES_TAKEN.remove(DST_FILE_PATH);
+			}
+			if (!SERVED && (rangesLeft || THREADED_SERVER)) { // a selector session's ranges come in through the server
+				final Thread listener = Threads.create(new NextReceiver(new FileReceiver(LISTEN_PORT)));
+				LISTENERS.add(listener);
+				listener.start();
+			}
+			return true;
+		}
 	}
 	// init file and connection and buffers
 	public FileReceiver initialise () throws Exception {
 
+		// size buffers to the negotiated payload
+		if (POSITIONAL) {
+			MAP_WINDOW = Integer.getInteger("rft.mmap.window", MAP_BUDGET / DATA_SIZE);
+			if (MAPPED && (MAP_WINDOW < 1 || MAP_WINDOW > Integer.MAX_VALUE / DATA_SIZE)) {
+				throw new IllegalArgumentException("rft.mmap.window out of range: " + MAP_WINDOW);
+			}
+			log(MAPPED ? "mapped writes, " + MAP_WINDOW + " pkt windows" : "positional writes");
+		} else {
+			final int slab = SERVED || THREADED_SERVER ? SESSION_SLAB_BUDGET : SLAB_BUDGET;
+			CACHE_MAX = Math.min(ACK_WINDOW, Integer.highestOneBit(Math.max(1, slab / DATA_SIZE * 4 / 5)));
+			WRITE_BUF_SIZE = Math.max(1, Math.min(4*1024, CACHE_MAX / 4));
+			CACHEMAP = new ReorderRing<>(CACHE_MAX);
+			PAYLOADS = new BufferPool(CACHE_MAX + WRITE_BUF_SIZE + Math.max(1, LANES), DATA_SIZE); // one a lane
+			log("payload slab: " + PAYLOADS.count() + " buffers, " + PAYLOADS.slabBytes()/1024 + " KB");
+		}
+
 		// setup remaining IO
-		UDP_CHANNEL.connect(SND_ADDR);
-		FILECHANNEL = (new FileOutputStream(DST_FILE_PATH, false)).getChannel();
-		// start writer thread
-		WRITER_THREAD = new Thread(new WriterThread(
-				WRITE_BUF_SIZE,
-				SEM_WRITE,
-				SEQNUM_FLOOR,
-				CACHEMAP,
-				FILECHANNEL,
-				PKTS_EXPECTED,
-				SEQN_FLOOR_LOCK
-			));
-		WRITER_THREAD.start();
+		if (!SERVED) {
+			UDP_CHANNEL.connect(SND_ADDR);
+		}
+		if (!BUNDLE) {
+			FILECHANNEL = (new RandomAccessFile(DST_FILE_PATH, "rw")).getChannel(); // sized by takeRange
+			if (Checkpoint.INTERVAL > 0) {
+				final ByteBuffer saved = Checkpoint.load(DST_FILE_PATH, FILE_SIZE, DATA_SIZE, RANGE, SOURCE);
+				if (saved != null) {
+					resume(saved);
+				}
+				CHECKPOINT = new Checkpoint(DST_FILE_PATH, FILE_SIZE, DATA_SIZE, RANGE, SOURCE, FILECHANNEL);
+			}
+			if (DELTA) {
+				final long t = System.nanoTime();
+				SIGNATURES = BlockSignatures.of(FILECHANNEL, RANGE.offset, RANGE.length, DATA_SIZE);
+				DIGEST = BlockSignatures.digest(SIGNATURES);
+				log("delta: " + SIGNATURES.length + " blocks signed in " + (System.nanoTime() - t)/1000000 + " ms");
+			}
+		}
+		SACK_SUCCESS = createSACK();
+		if (POSITIONAL) {
+			if (MAPPED) {
+				// enough that a window is complete before one a ring's length later can open
+				final int live = (ACK_WINDOW + MAP_WINDOW - 1) / MAP_WINDOW + 1;
+				WINDOWS = new MappedByteBuffer[Integer.highestOneBit(live - 1) << 1];
+				WINDOW_FILLED = new int[WINDOWS.length];
+				WINDOWS_MAPPED = 0;
+			}
+			if (CHECKPOINT != null) {
+				CHECKPOINT.start(RECEIVED);
+			}
+			if (FEC) {
+				final int slots = Integer.highestOneBit(Math.max(4 * Fec.MAX_GROUP, MEMBER_BUDGET / DATA_SIZE));
+				MEMBERS = new byte[slots * DATA_SIZE];
+				MEMBER_SEQN = new long[slots];
+				Arrays.fill(MEMBER_SEQN, -1);
+				MEMBER_MASK = slots - 1;
+			}
+			if (DEFLATE) {
+				final int count = Math.max(16, INFLATE_BUDGET / DATA_SIZE);
+				DEFLATED = new BufferPool(count, 8 + DATA_SIZE);
+				INFLATE_QUEUE = new ArrayBlockingQueue<ByteBuffer>(count + 1);
+				INFLATER = Threads.create(new InflaterThread());
+				INFLATER.start();
+			}
+		} else {
+			if (!BUNDLE) {
+				FILECHANNEL.position(RANGE.offset + CACHEMAP.floor() * DATA_SIZE); // the writer appends from here
+			}
+			WRITER = new WriterThread(
+					WRITE_BUF_SIZE,
+					CACHEMAP,
+					PAYLOADS,
+					BUNDLE ? new BundleWriter(new File(DST_FILE_PATH).toPath()) : FILECHANNEL,
+					PKTS_EXPECTED,
+					CHECKPOINT,
+					DEFLATE ? RANGE : null,
+					DATA_SIZE
+				);
+			if (SERVED) { // the server runs it on its writer pool
+				log("Session fully initialised!");
+				return this;
+			}
+			// start writer thread
+			WRITER_THREAD = Threads.create(WRITER);
+			WRITER_THREAD.start();
+		}
+		// start ack thread
+		ACKER = new AckThread(UDP_CHANNEL, RECEIVED, ACK_EVERY, ACK_DELAY_US * 1000, codec());
+		ACK_THREAD = Threads.create(ACKER);
+		ACK_THREAD.start();
 		log("Receiver fully initialised!");
 		return this;
 	}
 
+	// takes up a checkpoint of this range. the last pkt is always left to come, so the transfer
+	// completes the usual way. ordered writes keep nothing above their floor
+	private void resume (ByteBuffer saved) {
+		final long last = PKTS_EXPECTED - 1;
+		final long floor = saved.getLong();
+		RECEIVED.skipTo(Math.min(floor, last));
+		PKTS_RECEIVED = RECEIVED.floor();
+		final int numRanges = saved.get() & 0xFF;
+		for (int r = 0; POSITIONAL && r < numRanges; r++) {
+			final long end = Math.min(floor + saved.getInt(saved.position() + 4), last);
+			for (long seqN = floor + saved.getInt(); seqN < end; seqN++) {
+				if (RECEIVED.mark(seqN)) {
+					PKTS_RECEIVED++;
+				}
+			}
+			saved.getInt();
+		}
+		if (!POSITIONAL) {
+			CACHEMAP.skipTo(RECEIVED.floor());
+		}
+		log("resuming at pkt " + RECEIVED.floor() + ", " + PKTS_RECEIVED + " of " + PKTS_EXPECTED + " already here");
+	}
+	// success, with what is held so far. fixed for the session, resends of it tell the same
+	private ByteBuffer createSACK () {
+		final ByteBuffer sack = ByteBuffer.allocateDirect(SACK_SIZE + SackTracker.HEADER_SIZE
+				+ SackTracker.MAX_RANGES * SackTracker.RANGE_SIZE);
+		return CODEC.sack(sack, (byte)((DELTA ? RESULT_SIGNATURES : 0) | (DEFLATE ? RESULT_DEFLATE : 0)
+				| (FEC ? RESULT_FEC : 0) | (CRC32C ? RESULT_CRC32C : 0)), RECEIVED);
+	}
+
 	public FileReceiver receiveLoop () throws Exception {
+		if (LANES <= 1 && INFLATER == null) {
+			receiveLane();
+			return this;
+		}
+		// with an inflater even one lane runs on its own thread, as the inflater may finish
+		final int lanes = Math.max(1, LANES);
+		log(lanes + " receive lanes");
+		LANE_THREADS = new Thread[lanes];
+		for (int i = 0; i < lanes; i++) {
+			LANE_THREADS[i] = Threads.create(new Lane());
+			LANE_THREADS[i].start();
+		}
+		COMPLETE.await();
+		return this;
+	}
+
+	// reads and verifies pkts on the calling thread, places them under SEQUENCER. returns once
+	// every pkt is in, or on a lane thread, once the FIN is answered: whichever lane or the
+	// inflater took in the last pkt, some lane is always left to catch the FIN
+	private void receiveLane () throws IOException {
 
-		final ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE);
-		final ByteBuffer ACK = ByteBuffer.allocateDirect(ACK_SIZE);
+		final PacketCodec codec = codec();
+		final ByteBuffer sack = SACK_SUCCESS.duplicate();
+		final ByteBuffer sig = DELTA ? ByteBuffer.allocateDirect(HEADER_SIZE + DATA_SIZE) : null;
+		final boolean inflating = INFLATER != null;
 		ByteBuffer[] pkt = new ByteBuffer[2];
-		pkt[0] = head;
+		pkt[0] = ByteBuffer.allocate(HEADER_SIZE);
+		// positional reuses one, with room for a PARITY's longer header. ordered reads into a
+		// pool buffer, or into this one while the pool is dry, and then drops the DATA unACKed:
+		// the pool is never waited on under SEQUENCER, where it would stall the writer's floor
+		final ByteBuffer scratch = ByteBuffer.allocateDirect(DATA_SIZE + (FEC ? PARITY_HEADER_SIZE - HEADER_SIZE : 0));
+		pkt[1] = scratch;
 
 		while (true) {
 
+			if (pkt[1] == scratch && !POSITIONAL) {
+				synchronized (SEQUENCER) {
+					final ByteBuffer payload = PAYLOADS.poll();
+					if (payload != null) {
+						pkt[1] = payload;
+					}
+				}
+			}
+
+			if (DONE && LANE_THREADS == null) {
+				return;
+			}
 			pkt[0].clear();
-			pkt[1] = ByteBuffer.allocateDirect(DATA_SIZE);
-			UDP_CHANNEL.read(pkt);
+			pkt[1].clear();
+			try {
+				UDP_CHANNEL.read(pkt);
+			} catch (PortUnreachableException pue) {
+				if (!DONE) {
+					throw pue;
+				}
+				FIN_ACKED = true; // sender is gone
+				return;
+			}
 			flip(pkt);
 
-			if (isCorrupted(pkt)) {
+			if (isCorrupted(pkt, codec)) {
 				log("Corrupted packet received!");
 				continue;
 			}
 
+			if (DONE) { // a leftover lane, the FIN exchange is under way
+				if (pkt[0].get(CTRL_INDEX) == CTRL_FIN) {
+					FIN_ACKED = true;
+					return;
+				}
+				continue;
+			}
+
 			if (isSYN(pkt)) {
-				UDP_CHANNEL.write(SACK_SUCCESS);
-				SACK_SUCCESS.rewind();
+				UDP_CHANNEL.write(sack);
+				sack.rewind();
 				//log("Duplicate SYN received, sending SACK..");
 				continue;
 			}
+			if (pkt[0].get(CTRL_INDEX) == CTRL_SIG) {
+				if (DELTA) {
+					UDP_CHANNEL.write(signatures(pkt[0].getLong(HEADER_DATA_INDEX), sig, codec));
+				}
+				continue;
+			}
+			if (pkt[0].get(CTRL_INDEX) == CTRL_PAR) {
+				if (!FEC) {
+					continue;
+				}
+				final PendingParity group;
+				synchronized (SEQUENCER) {
+					if (DONE) {
+						continue;
+					}
+					group = offerParity(pkt[0].getLong(HEADER_DATA_INDEX), pkt[1]);
+				}
+				if (group != null && rebuild(group)) {
+					continue;
+				}
+				continue;
+			}
+			if (pkt[0].get(CTRL_INDEX) == CTRL_HLD) {
+				if (!DELTA || pkt[1].limit() < HOLD_SIZE - HEADER_SIZE) {
+					continue;
+				}
+				synchronized (SEQUENCER) {
+					if (DONE || !hold(pkt[0].getLong(HEADER_DATA_INDEX), pkt[1].getLong(0))) {
+						continue;
+					}
+					log("ALL PACKETS RECEIVED! finalising...");
+					DONE = true;
+					COMPLETE.countDown();
+					continue;
+				}
+			}
 
 			// IS VALID DATA
-			int seqN = pkt[0].getInt(5);
-			UDP_CHANNEL.write(createACK(seqN, ACK)); // send ack
-			ACK.clear();
-
-			// because pkts with seqn smaller than seqnm floor will never be consumed
-			synchronized (SEQN_FLOOR_LOCK) { 
-				if (seqN < SEQNUM_FLOOR.get()) {
+			long seqN = pkt[0].getLong(5);
+			if (inflating && seqN >= 0 && seqN < PKTS_EXPECTED
+					&& pkt[1].remaining() < RANGE.blockSize(seqN, DATA_SIZE)) {
+				synchronized (SEQUENCER) {
+					if (DONE) {
+						continue;
+					}
+					if (!RECEIVED.holds(seqN)) { // a duplicate goes on below, ACKed again as it is
+						final ByteBuffer deflated = DEFLATED.poll();
+						if (deflated != null) {
+							deflated.putLong(seqN).put(pkt[1]).flip();
+							INFLATE_QUEUE.add(deflated);
+						}
+						continue;
+					}
+				}
+			}
+			if (pkt[1] == scratch && !POSITIONAL) {
+				continue; // no pool buffer to hand the writer. left unACKed, so the sender resends it
+			}
+			synchronized (SEQUENCER) {
+				if (DONE) {
 					continue;
 				}
-				if (CACHEMAP.containsKey(seqN)) {
+				final int stored = POSITIONAL
+						? writeAt(seqN, pkt[1]) // before it is ACKed
+						: CACHEMAP.offer(seqN, pkt[1]); // wakes the writer if it was waiting for seqN
+				if (stored == ReorderRing.FULL) {
+					continue; // no slot for it yet. left unACKed, so the sender resends it
+				}
+				final boolean gap = seqN > RECEIVED.highest() + 1; // opened a hole, tell the sender now
+				RECEIVED.mark(seqN); // duplicates too, they may have fallen outside an earlier ACK window
+				ACKER.onPacket(gap);
+
+				if (stored == ReorderRing.DUPLICATE) {
 					//log("Duplicate pkt " + seqN + "received. Discarding.");
+					if (!FEC) { // else it may be a resend of a lost pkt parity rebuilt
+						RECEIVED.duplicate(seqN);
+					}
 					continue;
 				}
-				// valid data without duplicate
-				CACHEMAP.put(seqN, pkt[1]); // put data portion into cachemap
+				PKTS_RECEIVED++;
+				if (!POSITIONAL) {
+					pkt[1] = PAYLOADS.poll(); // the last one is the writer's now, it recycles it once written
+					if (pkt[1] == null) {
+						pkt[1] = scratch;
+					}
+				}
+
+				if (PKTS_RECEIVED == PKTS_EXPECTED) {
+					log("ALL PACKETS RECEIVED! finalising...");
+					DONE = true;
+					COMPLETE.countDown();
+				}
 			}
+		}
+	}
 
-			SEM_WRITE.release(); // signal writer to check
-			PKTS_RECEIVED++;
+	// one for a thread of this session, on the agreed checksum
+	private PacketCodec codec () {
+		final PacketCodec codec = new PacketCodec();
+		if (CRC32C) {
+			codec.useCrc32c();
+		}
+		return codec;
+	}
+
+	// a payload deflated on its own back into out, flipped. false unless it is exactly size bytes
+	static boolean inflate (Inflater inflater, ByteBuffer in, ByteBuffer out, int size) {
+		inflater.reset();
+		inflater.setInput(in);
+		out.clear().limit(size);
+		try {
+			inflater.inflate(out);
+		} catch (DataFormatException e) {
+			return false;
+		}
+		in.rewind();
+		out.flip();
+		return inflater.finished() && out.limit() == size;
+	}
 
-			if (PKTS_RECEIVED == PKTS_EXPECTED) {
-				log("ALL PACKETS RECEIVED! finalising...");
+	// delta: the signatures from block first on, as many as fit a packet, after the digest of all
+	private ByteBuffer signatures (long first, ByteBuffer out, PacketCodec codec) {
+		codec.begin(out, CTRL_SIG).putLong(first).putLong(DIGEST);
+		for (long b = Math.max(0, first); b < SIGNATURES.length && out.remaining() >= 8; b++) {
+			out.putLong(SIGNATURES[(int)b]);
+		}
+		return codec.seal(out);
+	}
+	// delta, under SEQUENCER: [first, end) is unchanged, so it is held as it stands. the sender
+	// keeps runs inside the ACK window. true once every pkt is in
+	private boolean hold (long first, long end) {
+		if (first < 0 || end > PKTS_EXPECTED || first >= end) {
+			return false;
+		}
+		if (end - 1 >= RECEIVED.floor() && !RECEIVED.fits(end - 1)) {
+			return false; // left unACKed, so the sender resends it
+		}
+		final boolean gap = first > RECEIVED.highest() + 1;
+		for (long seqN = first; seqN < end; seqN++) {
+			if (RECEIVED.mark(seqN)) {
+				PKTS_RECEIVED++;
+			}
+		}
+		ACKER.onPacket(gap);
+		return PKTS_RECEIVED == PKTS_EXPECTED;
+	}
+
+	// fec, under SEQUENCER: holds a parity pkt. returns its group once it can be rebuilt,
+	// out of PENDING and with the cols it misses
+	private PendingParity offerParity (long first, ByteBuffer body) {
+		final int k = body.get(0) & 0xFF;
+		final int m = body.get(1) & 0xFF;
+		final int index = body.get(2) & 0xFF;
+		if (k < 1 || k > Fec.MAX_GROUP || m < 1 || m > Fec.MAX_PARITY || index >= m
+				|| first < 0 || first + k > PKTS_EXPECTED
+				|| body.remaining() != PARITY_HEADER_SIZE - HEADER_SIZE + DATA_SIZE) {
+			return null;
+		}
+		PendingParity group = null;
+		for (PendingParity g : PENDING) {
+			if (g.first == first) {
+				group = g;
 				break;
 			}
 		}
-		return this;
+		int missing = 0;
+		for (int col = 0; col < k; col++) {
+			if (!RECEIVED.holds(first + col)) {
+				missing++;
+			}
+		}
+		if (group != null && (missing == 0 || group.k != k || group.m != m)) {
+			PENDING.remove(group);
+			SPARE_PARITY.add(group);
+			group = null;
+		}
+		if (missing == 0) {
+			return null; // nothing lost, or resent already
+		}
+		if (group == null) {
+			if (PENDING.size() == PENDING_GROUPS) {
+				SPARE_PARITY.add(PENDING.poll());
+			}
+			group = SPARE_PARITY.isEmpty() ? new PendingParity() : SPARE_PARITY.poll();
+			group.first = first;
+			group.k = k;
+			group.m = m;
+			Arrays.fill(group.have, false);
+			group.count = 0;
+			PENDING.add(group);
+		}
+		if (!group.have[index]) {
+			if (group.parity[index] == null) {
+				group.parity[index] = new byte[DATA_SIZE];
+			}
+			body.position(PARITY_HEADER_SIZE - HEADER_SIZE);
+			body.get(group.parity[index]);
+			body.rewind();
+			group.have[index] = true;
+			group.count++;
+		}
+		if (missing > group.count) {
+			return null;
+		}
+		PENDING.remove(group);
+		group.e = 0;
+		for (int col = 0; col < k; col++) {
+			if (!RECEIVED.holds(first + col)) {
+				group.missing[group.e++] = col;
+			}
+		}
+		return group;
+	}
+	// fec: works out the group's missing members from the copies of the others in MEMBERS
+	// and the parity, outside SEQUENCER, and places them as if they had arrived. a copy
+	// overwritten meanwhile retags its slot, so the tags are checked again before placing.
+	// true once every pkt is in
+	private boolean rebuild (PendingParity group) throws IOException {
+		synchronized (SEQUENCER) {
+			if (!membersKept(group)) {
+				SPARE_PARITY.add(group);
+				return false;
+			}
+		}
+		for (int i = 0, r = 0; r < group.e; i++) {
+			if (group.have[i]) {
+				group.rows[r++] = i;
+			}
+		}
+		for (int col = 0, next = 0; col < group.k; col++) {
+			if (next < group.e && group.missing[next] == col) {
+				next++;
+				continue;
+			}
+			final int at = (int)((group.first + col) & MEMBER_MASK) * DATA_SIZE;
+			for (int r = 0; r < group.e; r++) {
+				Fec.encode(group.m, group.rows[r], col, group.parity[group.rows[r]], 0, MEMBERS, at, DATA_SIZE);
+			}
+		}
+		for (int t = 0; t < group.e; t++) {
+			if (group.out[t] == null) {
+				group.out[t] = new byte[DATA_SIZE];
+			}
+		}
+		Fec.solve(group.m, group.rows, group.missing, group.e, group.parity, group.out, DATA_SIZE);
+		synchronized (SEQUENCER) {
+			SPARE_PARITY.add(group);
+			if (!membersKept(group)) {
+				return false;
+			}
+			for (int t = 0; t < group.e && !DONE; t++) {
+				final long seqN = group.first + group.missing[t];
+				if (place(seqN, ByteBuffer.wrap(group.out[t], 0, RANGE.blockSize(seqN, DATA_SIZE)), true)) {
+					log("ALL PACKETS RECEIVED! finalising...");
+					DONE = true;
+					COMPLETE.countDown();
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	// fec, under SEQUENCER: whether MEMBERS still holds every member the group does not miss
+	private boolean membersKept (PendingParity group) {
+		for (int col = 0, next = 0; col < group.k; col++) {
+			if (next < group.e && group.missing[next] == col) {
+				next++;
+			} else if (MEMBER_SEQN[(int)((group.first + col) & MEMBER_MASK)] != group.first + col) {
+				return false;
+			}
+		}
+		return true;
+	}
+	// fec, under SEQUENCER: copies a pkt just placed, data from at to its limit, into its slot
+	private void keep (long seqN, ByteBuffer data, int at) {
+		final int slot = (int)(seqN & MEMBER_MASK);
+		final int length = data.limit() - at;
+		data.get(at, MEMBERS, slot * DATA_SIZE, length);
+		Arrays.fill(MEMBERS, slot * DATA_SIZE + length, (slot + 1) * DATA_SIZE, (byte)0);
+		MEMBER_SEQN[slot] = seqN;
+	}
+	// under SEQUENCER: a rebuilt or inflated pkt, taken in as if it had arrived. true once every pkt is in
+	private boolean place (long seqN, ByteBuffer data, boolean rebuilt) throws IOException {
+		if (writeAt(seqN, data) != ReorderRing.ACCEPTED) {
+			return false; // arrived meanwhile, or no room for it yet
+		}
+		final boolean gap = seqN > RECEIVED.highest() + 1;
+		RECEIVED.mark(seqN);
+		ACKER.onPacket(gap);
+		if (rebuilt) {
+			REBUILT++;
+		}
+		PKTS_RECEIVED++;
+		return PKTS_RECEIVED == PKTS_EXPECTED;
+	}
+
+	// fec: a group's parity, held till there is enough of it to rebuild what the group misses
+	private static class PendingParity {
+		long first;
+		int k;
+		int m;
+		final byte[][] parity = new byte[Fec.MAX_PARITY][]; // by INDEX
+		final boolean[] have = new boolean[Fec.MAX_PARITY];
+		int count;
+		final int[] missing = new int[Fec.MAX_GROUP]; // cols, in order, once it can be rebuilt
+		int e;
+		final int[] rows = new int[Fec.MAX_PARITY]; // the parity INDEXes it is rebuilt from
+		final byte[][] out = new byte[Fec.MAX_PARITY][]; // the rebuilt members, by missing
+	}
+
+	// ranges of a destination taken so far, and the transfer they belong to
+	private static class Claim {
+		final int session;
+		final BitSet ranges;
+		Claim (int session, int count) {
+			this.session = session;
+			ranges = new BitSet(count);
+		}
+	}
+
+	// the next listener on the port: a further range of a split transfer, or on a threaded
+	// server the next transfer, from its SYN to its FIN
+	private static class NextReceiver implements Runnable {
+		private final FileReceiver receiver;
+		public NextReceiver (FileReceiver r) {
+			receiver = r;
+		}
+		public void run () {
+			try {
+				receiver.sync();
+				receiver.receiveLoop().finish();
+			} catch (Exception e) {
+				log(e);
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// the receiver server's event loop. every datagram arrives on one non-blocking channel and
+	// goes by sender address to that sender's session. ACKs and FINs go out from this thread,
+	// writes run on a fixed pool shared by all sessions
+	private static class Server {
+
+		private static final long TICK = 1; // ms, timer pass when idle: delayed ACKs, FIN resends
+		private static final int BATCH = 1024; // datagrams per pass before the timers get a turn
+
+		private final int port;
+		private final DatagramChannel channel;
+		private final Selector selector;
+		private final ExecutorService writers;
+		private final Map<SocketAddress, ServerSession> sessions;
+		private final ByteBuffer in;
+		private final ByteBuffer probeAck;
+		private final PacketCodec codec;
+
+		public Server (int port) throws IOException {
+			this.port = port;
+			channel = listen(port);
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+			writers = Executors.newFixedThreadPool(SERVER_WRITERS);
+			sessions = new HashMap<SocketAddress, ServerSession>();
+			in = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+			probeAck = ByteBuffer.allocateDirect(PROBE_ACK_SIZE);
+			codec = new PacketCodec();
+		}
+
+		public void run () throws IOException {
+			log("Serving on port " + port + " with " + SERVER_WRITERS + " writers");
+			while (true) {
+				selector.select(TICK);
+				selector.selectedKeys().clear();
+				for (int i = 0; i < BATCH; i++) {
+					in.clear();
+					final SocketAddress from = channel.receive(in);
+					if (from == null) {
+						break;
+					}
+					in.flip();
+					try {
+						receive(from, System.nanoTime());
+					} catch (IOException | RuntimeException e) { // one session's or peer's trouble, the rest carry on
+						log(from + ": " + e);
+					}
+				}
+				tick(System.nanoTime());
+			}
+		}
+
+		private void receive (SocketAddress from, long now) throws IOException {
+			if (in.limit() < FIN_SIZE || isCorrupted(in, codec)) {
+				return; // a corrupted SYN too, the sender resends it
+			}
+			final ServerSession session = sessions.get(from);
+			switch (in.get(CTRL_INDEX)) {
+			case CTRL_PRB: // path MTU probe, echo the size that arrived
+				codec.begin(probeAck, CTRL_PRB).putInt(in.limit());
+				channel.send(codec.seal(probeAck), from);
+				break;
+			case CTRL_SYN:
+				syn(from, session);
+				break;
+			case CTRL_FIN: // FACK
+				if (session != null) {
+					session.finAcked(now);
+				}
+				break;
+			case CTRL_DAT:
+				if (session != null && in.limit() >= HEADER_SIZE) {
+					session.data(in, now);
+				}
+				break;
+			}
+		}
+
+		// a resent SYN is answered again. a new session id from a known address is a new
+		// transfer from a restarted sender, and replaces the old one
+		private void syn (SocketAddress from, ServerSession session) throws IOException {
+			if (in.limit() < SYN_HEADER_SIZE) {
+				return;
+			}
+			if (session != null) {
+				if (session.id() == in.getInt(SYN_HEADER_SIZE - 4)) {
+					session.sack();
+					return;
+				}
+				log(from + ": superseded by a new transfer");
+				session.abort();
+				sessions.remove(from);
+			}
+			final FileReceiver receiver = new FileReceiver(channel, port, from);
+			if (!receiver.parseSYN(in)) {
+				log(from + ": malformed SYN dropped");
+				return;
+			}
+			try {
+				if (!receiver.takeRange()) {
+					return;
+				}
+				receiver.initialise();
+			} catch (Exception e) {
+				log(from + ": cannot set up " + receiver.DST_FILE_PATH + ": " + e);
+				return;
+			}
+			log(from + ": " + receiver.PKTS_EXPECTED + " pkts of " + receiver.DATA_SIZE + " bytes to " + receiver.DST_FILE_PATH
+					+ (receiver.RANGE.count > 1 ? ", range " + receiver.RANGE.index + " of " + receiver.RANGE.count : "")
+					+ ", " + (sessions.size() + 1) + " sessions");
+			session = new ServerSession(receiver, from, writers, codec);
+			sessions.put(from, session);
+			session.sack();
+		}
+
+		private void tick (long now) throws IOException {
+			final Iterator<Map.Entry<SocketAddress, ServerSession>> it = sessions.entrySet().iterator();
+			while (it.hasNext()) {
+				final Map.Entry<SocketAddress, ServerSession> e = it.next();
+				if (!e.getValue().tick(now)) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	// one sender's transfer on the receiver server. the loop thread feeds it pkts and runs its
+	// ACK and FIN timers. its writer runs on the pool, one pass at a time
+	private static class ServerSession implements Runnable {
+
+		private static final int RECEIVING = 0;
+		private static final int WRITING = 1; // everything is in, the writer is catching up
+		private static final int FINISHING = 2; // FIN sent till the FACK
+		private static final int LINGERING = 3; // done, still answers resends from its sender
+		private static final long FIN_WAIT = 2L*1000*1000*1000; // ns of FIN resends before giving up on the FACK
+		private static final long LINGER = 10L*1000*1000*1000;
+		private static final long IDLE = 60L*1000*1000*1000; // ns of silence before a transfer is abandoned
+
+		private final FileReceiver r;
+		private final SocketAddress sender;
+		private final ExecutorService writers;
+		private final PacketCodec codec; // the loop's
+		private final ByteBuffer ack;
+		private final ByteBuffer fin;
+		private final AtomicBoolean writing; // a writer pass is queued or running
+		private volatile boolean written;
+		private ByteBuffer spare; // payload buffer not handed over yet
+		private int state;
+		private int pending; // pkts since the last ACK
+		private long lastAck;
+		private long heard;
+		private long since; // entered FINISHING or LINGERING
+
+		public ServerSession (FileReceiver receiver, SocketAddress from, ExecutorService pool, PacketCodec codec) {
+			r = receiver;
+			sender = from;
+			writers = pool;
+			this.codec = codec;
+			ack = ByteBuffer.allocateDirect(ACK_MAX_SIZE);
+			fin = codec.fin(ByteBuffer.allocateDirect(FIN_SIZE));
+			writing = new AtomicBoolean(false);
+			written = false;
+			state = RECEIVING;
+			heard = System.nanoTime();
+		}
+
+		public int id () {
+			return r.SESSION_ID;
+		}
+
+		public void sack () throws IOException {
+			r.UDP_CHANNEL.send(r.SACK_SUCCESS, sender);
+			r.SACK_SUCCESS.rewind();
+		}
+
+		// a verified DATA pkt, copied out of the loop's buffer into this session's slab
+		public void data (ByteBuffer in, long now) throws IOException {
+			heard = now;
+			if (state != RECEIVING) {
+				pending++; // a resend, the final ACK went missing. the next tick repeats it
+				return;
+			}
+			final long seqN = in.getLong(HEADER_DATA_INDEX);
+			in.position(HEADER_SIZE);
+			if (in.remaining() > r.DATA_SIZE) {
+				return;
+			}
+			if (spare == null) {
+				spare = r.PAYLOADS.poll();
+				if (spare == null) {
+					return; // slab is all queued for writing. left unACKed, so the sender resends it
+				}
+			}
+			spare.clear();
+			spare.put(in).flip();
+			final int stored = r.CACHEMAP.offer(seqN, spare);
+			if (stored == ReorderRing.FULL) {
+				return;
+			}
+			final boolean gap = seqN > r.RECEIVED.highest() + 1;
+			r.RECEIVED.mark(seqN);
+			if (++pending >= ACK_EVERY || gap) {
+				sendAck(now);
+			}
+			if (stored == ReorderRing.DUPLICATE) {
+				r.RECEIVED.duplicate(seqN);
+				return;
+			}
+			spare = null; // the writer's now
+			r.PKTS_RECEIVED++;
+			if (r.CACHEMAP.ready()) {
+				write();
+			}
+			if (r.PKTS_RECEIVED == r.PKTS_EXPECTED) {
+				sendAck(now);
+				state = WRITING;
+			}
+		}
+
+		public void finAcked (long now) {
+			if (state == FINISHING) {
+				log(sender + ": done, " + r.PKTS_RECEIVED + " pkts to " + r.DST_FILE_PATH);
+				state = LINGERING;
+				since = now;
+			}
+		}
+
+		// false once the session can go
+		public boolean tick (long now) throws IOException {
+			if (pending > 0 && now - lastAck >= ACK_DELAY_US * 1000) {
+				sendAck(now);
+			}
+			switch (state) {
+			case RECEIVING:
+				if (now - heard > IDLE) {
+					log(sender + ": abandoned after " + r.PKTS_RECEIVED + " of " + r.PKTS_EXPECTED + " pkts");
+					abort();
+					return false;
+				}
+				break;
+			case WRITING:
+				if (written) {
+					state = FINISHING;
+					since = now;
+					sendFin();
+				}
+				break;
+			case FINISHING:
+				if (now - since > FIN_WAIT) {
+					log(sender + ": no FACK, done anyway");
+					state = LINGERING;
+					since = now;
+				} else {
+					sendFin();
+				}
+				break;
+			case LINGERING:
+				return now - since < LINGER;
+			}
+			return true;
+		}
+
+		public void abort () {
+			if (r.WRITER != null) {
+				r.WRITER.abort();
+			}
+		}
+
+		private void write () {
+			if (writing.compareAndSet(false, true)) {
+				writers.execute(this);
+			}
+		}
+		// a writer pass on the pool. goes again if pkts arrived at the floor while it finished up
+		public void run () {
+			do {
+				if (r.WRITER.runOnce()) {
+					written = true;
+				}
+				writing.set(false);
+			} while (!written && r.CACHEMAP.ready() && writing.compareAndSet(false, true));
+		}
+
+		private void sendAck (long now) throws IOException {
+			r.UDP_CHANNEL.send(codec.ack(ack, r.RECEIVED), sender);
+			pending = 0;
+			lastAck = now;
+		}
+		private void sendFin () throws IOException {
+			r.UDP_CHANNEL.send(fin, sender);
+			fin.rewind();
+		}
+	}
+
+	private class Lane implements Runnable {
+		public void run () {
+			try {
+				receiveLane();
+			} catch (ClosedChannelException ce) { // closed by finish
+			} catch (IOException e) {
+				System.out.println(e);
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// positional writes with deflate: inflates what the lanes hand it, in arrival order, and
+	// places it under SEQUENCER. runs till finish queues INFLATE_STOP
+	private class InflaterThread implements Runnable {
+		public void run () {
+			final Inflater inflater = new Inflater(true);
+			final ByteBuffer plain = ByteBuffer.allocateDirect(DATA_SIZE);
+			final ByteBuffer[] used = new ByteBuffer[1];
+			try {
+				while (true) {
+					final ByteBuffer deflated = INFLATE_QUEUE.take();
+					if (deflated == INFLATE_STOP) {
+						return;
+					}
+					final long seqN = deflated.getLong();
+					final boolean inflated = inflate(inflater, deflated, plain, RANGE.blockSize(seqN, DATA_SIZE));
+					used[0] = deflated;
+					DEFLATED.release(used, 1);
+					if (!inflated) {
+						log("pkt " + seqN + " does not inflate!");
+						continue;
+					}
+					synchronized (SEQUENCER) {
+						if (!DONE && place(seqN, plain, false)) {
+							log("ALL PACKETS RECEIVED! finalising...");
+							DONE = true;
+							COMPLETE.countDown();
+						}
+					}
+				}
+			} catch (InterruptedException | IOException e) {
+				System.out.println(e);
+				e.printStackTrace();
+			} finally {
+				inflater.end();
+			}
+		}
+	}
+
+	// positional mode: writes the payload at its offset unless already written. the ACK
+	// tracker is the duplicate filter, it is only marked under SEQUENCER and after the write.
+	private int writeAt (long seqN, ByteBuffer data) throws IOException {
+		if (seqN < 0 || seqN >= PKTS_EXPECTED || RECEIVED.holds(seqN)) {
+			return ReorderRing.DUPLICATE;
+		}
+		if (!RECEIVED.fits(seqN)) {
+			return ReorderRing.FULL;
+		}
+		final long position = RANGE.offset + seqN * DATA_SIZE;
+		final int at = data.position();
+		if (MAPPED) {
+			writeMapped(seqN, data);
+		} else {
+			while (data.hasRemaining()) {
+				FILECHANNEL.write(data, position + data.position());
+			}
+		}
+		if (MEMBERS != null) {
+			keep(seqN, data, at);
+		}
+		return ReorderRing.ACCEPTED;
+	}
+
+	// mmap mode: copies the payload into the window holding seqN, mapping it on first use.
+	// a complete window is flushed (per rft.mmap.flush) and let go, the GC unmaps it.
+	private void writeMapped (long seqN, ByteBuffer data) throws IOException {
+		final long w = seqN / MAP_WINDOW;
+		final int slot = (int)(w & (WINDOWS.length - 1));
+		final long start = w * MAP_WINDOW * DATA_SIZE;
+		MappedByteBuffer window = WINDOWS[slot];
+		if (window == null) {
+			window = FILECHANNEL.map(FileChannel.MapMode.READ_WRITE,
+					RANGE.offset + start, Math.min((long)MAP_WINDOW * DATA_SIZE, RANGE.length - start));
+			WINDOWS[slot] = window;
+			WINDOW_FILLED[slot] = 0;
+			for (long s = w * MAP_WINDOW; s < Math.min((w + 1) * MAP_WINDOW, PKTS_EXPECTED); s++) {
+				if (RECEIVED.holds(s)) { // written before a resume
+					WINDOW_FILLED[slot]++;
+				}
+			}
+			WINDOWS_MAPPED++;
+		}
+		window.position((int)(seqN - w * MAP_WINDOW) * DATA_SIZE);
+		window.put(data);
+		if (++WINDOW_FILLED[slot] == Math.min(MAP_WINDOW, PKTS_EXPECTED - w * MAP_WINDOW)) {
+			if (MAP_FORCE) {
+				window.force();
+			}
+			WINDOWS[slot] = null;
+		}
 	}
 
 	private FileReceiver finish () throws Exception {
-		// flush writer
-		SEM_WRITE.release();
-		WRITER_THREAD.join(); // wait for writer to fin
+		if (POSITIONAL) {
+			if (INFLATER != null) {
+				INFLATE_QUEUE.put(INFLATE_STOP);
+				INFLATER.join();
+			}
+			if (CHECKPOINT != null) {
+				CHECKPOINT.done();
+			}
+			FILECHANNEL.close();
+			log("written " + PKTS_RECEIVED + " packets in place"
+					+ (MAPPED ? ", " + WINDOWS_MAPPED + " windows mapped" : "")
+					+ (FEC ? ", " + REBUILT + " rebuilt from parity" : ""));
+		} else {
+			WRITER_THREAD.join(); // wait for writer to fin
+			log("payload slab low water: " + PAYLOADS.lowestFree() + " of " + PAYLOADS.count()
+					+ " buffers free, " + PAYLOADS.waits() + " waits");
+		}
+		ACKER.stop();
+		ACK_THREAD.join();
 
-		final ByteBuffer FIN = ByteBuffer.allocateDirect(FIN_SIZE);
-		CHECKSUM.reset();
-		CHECKSUM.update((int) CTRL_FIN);
-		FIN.putInt((int)CHECKSUM.getValue()).put(CTRL_FIN).flip();
+		final ByteBuffer FIN = CODEC.fin(ByteBuffer.allocateDirect(FIN_SIZE));
 
-		for (int i = 0; i < 8; i++) { // spam 8 fin
-			UDP_CHANNEL.write(FIN);
-			FIN.flip();
+		try {
+			for (int i = 0; i < 8; i++) { // spam 8 fin
+				UDP_CHANNEL.write(FIN);
+				FIN.flip();
+			}
+		} catch (PortUnreachableException pue) { // sender got a FIN and is already gone
+			UDP_CHANNEL.close();
+			return this;
+		}
+		if (LANE_THREADS != null) {
+			// the leftover lanes are still reading, one of them catches the FACK
+			try {
+				while (!FIN_ACKED) {
+					LockSupport.parkNanos(1000*1000);
+					UDP_CHANNEL.write(FIN);
+					FIN.flip();
+				}
+			} catch (PortUnreachableException pue) {
+			}
+			UDP_CHANNEL.close(); // releases lanes blocked in read
+			for (Thread lane : LANE_THREADS) {
+				lane.join();
+			}
+			return this;
 		}
 		// send FIN, wait FACK
 		DatagramSocket sk = UDP_CHANNEL.socket();
@@ -232,62 +1368,38 @@ public class FileReceiver {
 		sk.setSoTimeout(1);
 		while (true) {
 			try {
-				sk.receive(fack);
-				if (!isCorrupted(fack)) {
-					if (fack.getData()[4] == CTRL_FIN) {
-						break;
+				try {
+					sk.receive(fack);
+					if (!isCorrupted(fack)) {
+						if (fack.getData()[4] == CTRL_FIN) {
+							break;
+						}
 					}
+				} catch (SocketTimeoutException e) {
 				}
-			} catch (SocketTimeoutException e) {
+				UDP_CHANNEL.write(FIN);
+				FIN.flip();
 			} catch (PortUnreachableException pue) {
 				break;
 			}
-			UDP_CHANNEL.write(FIN);
-			FIN.flip();
 		}
 		UDP_CHANNEL.close();
 		return this;
 	}
 
-	private ByteBuffer createACK (int seqN, ByteBuffer ack) {
-		CHECKSUM.reset();
-		ack.clear();
-		ack.put(CTRL_INDEX, CTRL_DAT).putInt(HEADER_DATA_INDEX, seqN);
-		byte[] ba = new byte[5]; // 1 ctrl 4 seqN
-		ack.position(CTRL_INDEX);
-		ack.get(ba);
-		CHECKSUM.update(ba);
-		ack.putInt(0, (int)CHECKSUM.getValue());
-		ack.clear();
-		return ack;
-	}
-
 	private boolean isCorrupted (ByteBuffer pkt) {
-		final int proposed = pkt.getInt();
-		final byte[] dat = new byte[pkt.limit() - pkt.position()];
-		pkt.get(dat);
-		CHECKSUM.reset();
-		CHECKSUM.update(dat);
-		final int actual = (int)CHECKSUM.getValue();
-		pkt.rewind();
-		return proposed != actual;
-	}
-	private boolean isCorrupted (ByteBuffer[] pkt) {
-		final int proposed = pkt[0].getInt();
-		final byte[] dat1 = new byte[pkt[0].limit() - pkt[0].position()];
-		final byte[] dat2 = new byte[pkt[1].limit()];
-		CHECKSUM.reset();
-		pkt[0].get(dat1);
-		pkt[1].get(dat2);
-		CHECKSUM.update(dat1);
-		CHECKSUM.update(dat2);
-		final int actual = (int)CHECKSUM.getValue();
-		pkt[0].rewind();
-		pkt[1].rewind();
-		return proposed != actual;
+		return !CODEC.valid(pkt);
+	}
+	// caller's own codec, for threads other than main
+	private static boolean isCorrupted (ByteBuffer pkt, PacketCodec codec) {
+		return !codec.valid(pkt);
+	}
+	// lane's own codec, straight over the buffers
+	private static boolean isCorrupted (ByteBuffer[] pkt, PacketCodec codec) {
+		return !codec.valid(pkt);
 	}
 	private boolean isCorrupted (DatagramPacket pkt) {
-		return isCorrupted(ByteBuffer.wrap(pkt.getData()));
+		return isCorrupted(ByteBuffer.wrap(pkt.getData(), 0, pkt.getLength()));
 	}
 	private static boolean isSYN (ByteBuffer[] pkt) {
 		return pkt[0].get(CTRL_INDEX) == CTRL_SYN;
@@ -300,35 +1412,43 @@ public class FileReceiver {
 }
 
 class WriterThread implements Runnable {
-// remember to clear buffers if buffer pooling
 
 	private final int size;
-	private final int expected;
-	private final Semaphore sem;
-	private final AtomicInteger nextSNtoRead;
-	private final Map<Integer, ByteBuffer> cacheMap;
+	private final long expected;
+	private final ReorderRing<ByteBuffer> cacheMap;
+	private final BufferPool pool;
 	private final ByteBuffer[] buffer;
-	private final FileChannel toFile;
-	private final Object lock;
+	private final GatheringByteChannel toFile;
+	private final Checkpoint checkpoint; // or null
+	private final FileRange range; // deflated payloads are inflated for it, or null
+	private final int dataSize;
+	private final Inflater inflater;
+	private final ByteBuffer plain;
+	private long written; // pkts, from the start of the range
 	private int pos;
 
 	public WriterThread (
 		int size, 
-		Semaphore sem, 
-		AtomicInteger floor, 
-		Map<Integer, ByteBuffer> cache,
-		FileChannel fc,
-		int total_pkts,
-		Object floorLock
+		ReorderRing<ByteBuffer> cache,
+		BufferPool pool,
+		GatheringByteChannel fc,
+		long total_pkts,
+		Checkpoint checkpoint,
+		FileRange inflateFor,
+		int dataSize
 		) 
 	{
-		lock = floorLock;
 		expected = total_pkts;
 		this.size = size;
-		nextSNtoRead = floor;
-		this.sem = sem;
 		cacheMap = cache;
+		this.pool = pool;
 		toFile = fc;
+		this.checkpoint = checkpoint;
+		range = inflateFor;
+		this.dataSize = dataSize;
+		inflater = range != null ? new Inflater(true) : null;
+		plain = range != null ? ByteBuffer.allocateDirect(dataSize) : null;
+		written = cache.floor(); // resumed from
 		buffer = new ByteBuffer[size];
 		pos = 0;
 	}
@@ -336,34 +1456,55 @@ class WriterThread implements Runnable {
 	public void run () {
 		while (true) {
 
-			try {
-				sem.acquire();
-			} catch (InterruptedException e) {
-				System.out.println(e);
-				e.printStackTrace();
-			}
-
 			getFromCache();
 
 			// flush and terminate when complete
-			if (nextSNtoRead.get() >= expected) { 
+			if (cacheMap.floor() >= expected) { 
 				break;
 			}
+			cacheMap.await(); // until the next pkt in sequence arrives
 		}
 		finish();
 	}
+
+	// one pass as a pool task (receiver server): writes what is in sequence and hands the
+	// buffers back, since the next pass may be a while. true once the file is complete
+	public boolean runOnce () {
+		getFromCache();
+		if (pos != 0) {
+			try {
+				drain(pos);
+			} catch (IOException e) {
+				System.out.println("\nERROR WRITING TO FILE!!!\n" + e);
+				e.printStackTrace();
+			}
+			pos = 0;
+		}
+		if (cacheMap.floor() >= expected) {
+			finish();
+			return true;
+		}
+		return false;
+	}
+
+	// drops the file of an abandoned transfer
+	public void abort () {
+		try {
+			toFile.close();
+		} catch (IOException e) {
+		}
+	}
 	private void getFromCache () {
-		// tries to fill buffer in order from cache
+		// drains the contiguous run at the floor into the buffer
 		ByteBuffer data;
 		while (true) {
 
-			// syncs SEQNUM_FLOOR and CACHEMAP
-			synchronized (lock) {
-				data = cacheMap.remove(nextSNtoRead.get());
-				if (data == null) {
-					break; // next pkt in sequence is not in cache.
-				}
-				nextSNtoRead.getAndIncrement();
+			data = cacheMap.poll();
+			if (data == null) {
+				break; // next pkt in sequence is not in cache.
+			}
+			if (range != null) {
+				inflate(cacheMap.floor() - 1, data);
 			}
 
 			buffer[pos] = data;
@@ -371,29 +1512,244 @@ class WriterThread implements Runnable {
 			
 			if (pos == size) { // flush check
 				try {
-					toFile.write(buffer);
+					drain(buffer.length);
 				} catch (IOException e) {
 					System.out.println("\nERROR WRITING TO FILE!!!\n" + e);
 					e.printStackTrace();
 				}
 				pos = 0;
-				System.out.println("buffer flushed before packet " + nextSNtoRead.get());
+				System.out.println("buffer flushed before packet " + cacheMap.floor());
 			}
 		}
 	}
+	// swaps a deflated payload for its block, by way of plain
+	private void inflate (long seqN, ByteBuffer data) {
+		final int size = range.blockSize(seqN, dataSize);
+		if (data.remaining() >= size) {
+			return;
+		}
+		if (!FileReceiver.inflate(inflater, data, plain, size)) {
+			System.out.println("\nERROR INFLATING PACKET " + seqN + "!!!\n");
+			return;
+		}
+		data.clear();
+		data.put(plain).flip();
+	}
+	// a gathering write stops short of the last buffers (IOV_MAX), so keep writing till empty.
+	// the written buffers go back to the pool.
+	private void drain (int len) throws IOException {
+		while (buffer[len - 1].hasRemaining()) {
+			toFile.write(buffer, 0, len);
+		}
+		pool.release(buffer, len);
+		written += len;
+		if (checkpoint != null) {
+			checkpoint.written(written);
+		}
+	}
 	private void finish () {
 		try {
 			if (pos != 0) {
-				toFile.write(buffer, 0, pos);
+				drain(pos);
+			}
+			if (checkpoint != null) {
+				checkpoint.done();
+			}
+			if (inflater != null) {
+				inflater.end();
 			}
 			toFile.close();
-		} catch (IOException e) {
+		} catch (IOException | InterruptedException e) {
 				System.out.println("\nERROR WRITING TO FILE!!!\n" + e);
 				e.printStackTrace();					
 		}
-		if (cacheMap.size() > 0) {
+		if (!cacheMap.isEmpty()) {
 			System.out.println("Still has remaining items in cachemap??");
 		}
-		System.out.println("written " + (nextSNtoRead.get()-1) + " packets. writer thread closing...");
+		System.out.println("written " + (cacheMap.floor()-1) + " packets. writer thread closing...");
+	}
+}
+
+// unpacks a directory stream: reads the manifest off the front, then creates each file when
+// the stream reaches it and cuts its bytes out by the size in the manifest
+class BundleWriter implements GatheringByteChannel {
+
+	private final Path ROOT;
+	private final ByteBuffer LENGTH;
+	private ByteBuffer header; // manifest body, once its length is in
+	private Manifest manifest;
+	private int next; // index of the next file to create
+	private FileChannel current;
+	private long left; // bytes of current still to write
+	private boolean open;
+
+	public BundleWriter (Path root) {
+		ROOT = root.toAbsolutePath().normalize();
+		LENGTH = ByteBuffer.allocate(Manifest.LENGTH_SIZE);
+		next = 0;
+		open = true;
+	}
+
+	public int write (ByteBuffer src) throws IOException {
+		final int n = src.remaining();
+		while (src.hasRemaining()) {
+			if (manifest == null) {
+				readManifest(src);
+				continue;
+			}
+			if (current == null) {
+				throw new IOException("data past the end of the manifest");
+			}
+			final int limit = src.limit();
+			if (src.remaining() > left) {
+				src.limit(src.position() + (int)left);
+			}
+			while (src.hasRemaining()) {
+				left -= current.write(src);
+			}
+			src.limit(limit);
+			if (left == 0) {
+				current.close();
+				current = null;
+				openNext();
+			}
+		}
+		return n;
+	}
+	public long write (ByteBuffer[] srcs, int offset, int length) throws IOException {
+		long total = 0;
+		for (int i = offset; i < offset + length; i++) {
+			total += write(srcs[i]);
+		}
+		return total;
+	}
+	public long write (ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	private void readManifest (ByteBuffer src) throws IOException {
+		if (header == null) {
+			move(src, LENGTH);
+			if (!LENGTH.hasRemaining()) {
+				header = ByteBuffer.allocate(LENGTH.getInt(0));
+			}
+			return;
+		}
+		move(src, header);
+		if (!header.hasRemaining()) {
+			header.flip();
+			manifest = Manifest.decode(header);
+			System.out.println("receiving directory, " + manifest.count() + " files");
+			openNext();
+		}
+	}
+	private static void move (ByteBuffer src, ByteBuffer dst) {
+		final int limit = src.limit();
+		src.limit(src.position() + Math.min(src.remaining(), dst.remaining()));
+		dst.put(src);
+		src.limit(limit);
+	}
+
+	// creates files up to the next one with bytes to come. empty ones are done on creation
+	private void openNext () throws IOException {
+		while (current == null && next < manifest.count()) {
+			final Path file = ROOT.resolve(manifest.paths[next]).normalize();
+			if (!file.startsWith(ROOT) || file.equals(ROOT)) {
+				throw new IOException("manifest path outside the destination: " + manifest.paths[next]);
+			}
+			Files.createDirectories(file.getParent());
+			current = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			left = manifest.sizes[next];
+			next++;
+			if (left == 0) {
+				current.close();
+				current = null;
+			}
+		}
+	}
+
+	public boolean isOpen () {
+		return open;
+	}
+	public void close () throws IOException {
+		open = false;
+		final boolean early = manifest == null || next < manifest.count() || current != null;
+		if (current != null) {
+			current.close();
+			current = null;
+		}
+		if (early) {
+			System.out.println("directory stream ended early, " + next + " files created");
+		}
+	}
+}
+
+// sends coalesced selective ACKs off the receive thread
+class AckThread implements Runnable {
+
+	private final DatagramChannel channel;
+	private final SackTracker received;
+	private final PacketCodec codec;
+	private final ByteBuffer ack;
+	private final int every;
+	private final long delayNanos;
+	private final AtomicInteger pending; // packets since the last ACK
+	private volatile boolean urgent;
+	private volatile boolean running;
+	private volatile Thread thread;
+
+	public AckThread (DatagramChannel dc, SackTracker tracker, int every, long delayNanos, PacketCodec codec) {
+		channel = dc;
+		received = tracker;
+		this.codec = codec;
+		ack = ByteBuffer.allocateDirect(FileReceiver.ACK_MAX_SIZE);
+		this.every = every;
+		this.delayNanos = delayNanos;
+		pending = new AtomicInteger(0);
+		urgent = false;
+		running = true;
+	}
+
+	// called by the receive thread for every valid data packet, duplicates included
+	public void onPacket (boolean gap) {
+		if (pending.incrementAndGet() >= every || gap) {
+			if (gap) {
+				urgent = true;
+			}
+			LockSupport.unpark(thread);
+		}
+	}
+
+	// sends a last ACK and lets the thread die
+	public void stop () {
+		running = false;
+		LockSupport.unpark(thread);
+	}
+
+	public void run () {
+		thread = Thread.currentThread();
+		try {
+			while (running) {
+				LockSupport.parkNanos(delayNanos);
+				if (pending.get() == 0 && !urgent) {
+					continue;
+				}
+				pending.set(0);
+				urgent = false;
+				channel.write(createACK());
+			}
+			channel.write(createACK());
+		} catch (ClosedChannelException ce) {
+			System.out.println("Channel closed, ack thread terminating..");
+		} catch (IOException e) {
+			System.out.println(e);
+			e.printStackTrace();
+		}
+	}
+
+	// cumulative floor plus the received ranges above it, so one ACK covers many packets
+	private ByteBuffer createACK () {
+		return codec.ack(ack, received);
 	}
 }
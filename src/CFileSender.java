@@ -3,37 +3,91 @@ import static java.net.StandardSocketOptions.*;
 import java.io.*;
 import java.nio.charset.*;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.*;
 import java.nio.ByteOrder;
 import java.util.*;
-import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
 
 public class FileSender {
 
 	// misc
 	private static final Charset CHARSET_NET = StandardCharsets.UTF_8;
-	private final CRC32 CHECKSUM; // ALL CHECKSUMS CAST TO 32 BIT INT
-	private static final int CHECKSUM_SIZE = 4;
+	private final PacketCodec CODEC; // frames and checks pkts for this thread, see PacketCodec
 	public static final int CTRL_INDEX = 4;
 	public static final int HEADER_DATA_INDEX = 5;
 
-	// SYN: 4B CRC, 1B 0xFF(syn), 4B NUMPKT
-	private static final int SYN_HEADER_SIZE = 9;
+	// SYN: 4B CRC, 1B 0xFF(syn), 8B FILESIZE, 4B DATASIZE, 1B RANGES, 1B RANGE, 1B KIND, 1B FLAGS,
+	// 8B SOURCE, 4B SESSION. SOURCE identifies the source file's contents, see Checkpoint.source
+	private static final int SYN_HEADER_SIZE = 33;
+	private static final byte KIND_FILE = 0;
+	private static final byte KIND_DIR = 1; // FILESIZE counts the manifest plus every file, see Manifest
+	private static final byte KIND_DELTA = 2; // a file, sending only the blocks that differ from the destination
+	private static final byte FLAG_DEFLATE = 1; // payloads may be deflated, see DATA
+	private static final byte FLAG_FEC = 2; // parity follows each group of pkts, see PARITY
+	private static final byte FLAG_CRC32C = 4; // CRC32C checksums after the SACK, see PacketCodec
+	// tells a receiver server this transfer from an earlier one to the same port or destination.
+	// one per run, so every range of a split transfer carries the same
+	private static final int SESSION_ID = ThreadLocalRandom.current().nextInt();
 
-	// SACK: 4B CRC, 1B CTRL, 1B RESULT
+	// PROBE: 4B CRC, 1B 0x2(probe), 4B SIZE, zero padding up to SIZE. echoed as 4B CRC, 1B 0x2, 4B SIZE
+	private static final byte CTRL_PRB = 2;
+	private static final int PROBE_ACK_SIZE = 9;
+	private static final int[] PROBE_SIZES = {1000, 1472, 4096, 8192, 8972, 16384, 32768, 65507};
+	private static final int PROBE_BURST = 3; // a size passes if all but one of these get through
+	private static final int PROBE_TIMEOUT = 20; // ms
+	private static final int MAX_PACKET = Integer.getInteger("rft.mtu.max", 65507);
+	// without DF the kernel fragments a probe too big for the path and it still gets through,
+	// so the probe would settle on the largest size. it stops at an Ethernet MTU's worth
+	// instead, unless rft.mtu.max is given
+	private static final int UNFRAGMENTED_MAX = 1472;
+	private static final boolean MAX_PACKET_SET = System.getProperty("rft.mtu.max") != null;
+	private static final int FIXED_PAYLOAD = Integer.getInteger("rft.payload", 0); // 0 probes
+
+	// delta: SIG asks for block signatures as 4B CRC, 1B 0x3(sig), 8B FIRST, and is answered
+	// with 4B CRC, 1B 0x3, 8B FIRST, 8B DIGEST (of all of them), as many as fit * 8B SIGNATURE.
+	// HOLD says a run of seqNs is unchanged: 4B CRC, 1B 0x4(hold), 8B FIRST, 8B END, ACKed as data
+	private static final byte CTRL_SIG = 3;
+	private static final byte CTRL_HLD = 4;
+	private static final int HOLD_SIZE = 21;
+	private static final int SIG_BURST = 32; // signature requests out at once
+
+	// SACK: 4B CRC, 1B CTRL, 1B RESULT (-1, or flags of what was agreed). a success goes on with
+	// what the receiver already holds of a resumed transfer, as an ACK body: 8B FLOOR,
+	// 1B NUMRANGES, NUMRANGES * (4B START, 4B END)
 	private static final int SACK_SIZE = 6;
+	private static final int SACK_MAX_SIZE = SACK_SIZE + SackTracker.HEADER_SIZE + SackTracker.MAX_RANGES * SackTracker.RANGE_SIZE;
 	private static final int SACK_TIMEOUT = 2;
-	public static final int ACK_SIZE = 9;
+	private static final byte RESULT_SIGNATURES = 1; // delta signatures are ready
+	private static final byte RESULT_DEFLATE = 2; // deflated payloads are taken
+	private static final byte RESULT_FEC = 4; // parity is used
+	private static final byte RESULT_CRC32C = 8; // CRC32C checksums from here on
+
+	// ACK: 4B CRC, 1B 0x0(ack), 8B FLOOR, 1B NUMRANGES, NUMRANGES * (4B START, 4B END) from FLOOR,
+	// 1B NUMDUPS, NUMDUPS * 8B SEQN arrived again since the last ACK
+	public static final int ACK_FLOOR_INDEX = 5;
+	public static final int ACK_NUMRANGES_INDEX = 13;
+	public static final int ACK_RANGES_INDEX = 14;
+	public static final int ACK_MAX_SIZE = ACK_RANGES_INDEX
+			+ SackTracker.MAX_RANGES * SackTracker.RANGE_SIZE + SackTracker.DUPS_SIZE;
 	public static final int FIN_SIZE = 5;
 
-	// DATA: 4B CRC, 1B 0x0(data), 4B seqnum 
-	private static final int HEADER_SIZE = 9;
-	private static final int DATA_SIZE = 991;
-	private static final int PACKET_SIZE = 1000;
+	// DATA: 4B CRC, 1B 0x0(data), 8B seqnum 
+	// with deflate agreed, a payload shorter than its packet's block (see FileRange) is that
+	// block deflated on its own. one is only sent deflated if that came out smaller
+	private static final int HEADER_SIZE = 13;
+	private final int DATA_SIZE; // negotiated before the SYN
+	private final int PACKET_SIZE;
+	// PARITY: 4B CRC, 1B 0x5(parity), 8B FIRST, 1B K, 1B M, 1B INDEX, parity of the raw blocks
+	// of seqNs [FIRST, FIRST+K), see Fec. its header is 3B longer than DATA's, so with FEC on,
+	// payloads are cut by that to keep every packet within the probed size
+	private static final byte CTRL_PAR = 5;
+	public static final int PARITY_HEADER_SIZE = 16;
 	public static final byte CTRL_FIN = -1;		
-	private static final byte CTRL_DAT = 0;			
+	public static final byte CTRL_DAT = 0;			
 	public static final byte CTRL_SYN = 1;
 
 	// File IO
@@ -42,6 +96,19 @@ public class FileSender {
 	private final String DST_FILE_PATH;
 	private final long FILE_SIZE;
 	private FileChannel FILECHANNEL;
+	// a directory source goes as one stream, its manifest then its files back to back
+	private final boolean BUNDLE;
+	private final ScatteringByteChannel SOURCE; // FILECHANNEL, or the bundle stream
+	// delta: block i is the payload of seqN i. the source is signed while the SYN is out, the
+	// receiver's signatures of its copy are compared, and runs of matching blocks go as HOLDs
+	private static final boolean DELTA_WANTED = Boolean.getBoolean("rft.delta");
+	private final boolean DELTA; // not for bundles
+	private final FutureTask<long[]> SIGNATURES;
+	private BitSet unchanged; // blocks the receiver has, once compared
+	// split transfers: the file goes as rft.ranges contiguous ranges, each from its own
+	// thread and socket with its own window, timers and seqNs. range 0 runs on main
+	private static final int RANGES = Integer.getInteger("rft.ranges", 1);
+	private final FileRange RANGE;
 
 	// Net IO
 	private SocketAddress RCV_ADDR;
@@ -49,20 +116,67 @@ public class FileSender {
 	private final ByteBuffer SYN;
 
 	// others
-	private static final int MAX_EXISTING_PACKETS = 4*1024;
-	private static final int DATA_BUFFER_SIZE = 2*1024; // number of DATA_SIZE packets to hold
+	// buffers are budgeted in bytes, so bigger packets mean fewer of them
+	private static final int SEND_BUDGET = 16*1024*1024;
+	private final int MAX_EXISTING_PACKETS; // at most 4K
+	// seqNs sent past the ACK floor, at most the receiver's ACK window
+	private static final int SEQ_WINDOW = 16*1024;
+	private static final int READ_BUDGET = 2*1024*1024;
+	private final int DATA_BUFFER_SIZE; // number of DATA_SIZE packets to hold, at most 2K
 	private static final int NUM_DATA_BUFFERS = 2;
-	private static final long ACK_TIMEOUT = 4;
+	// mmap: packets go out as header + a slice of the mapped source, mapped a window at a time
+	private static final boolean READ_MAPPED = "mmap".equals(System.getProperty("rft.read"));
+	private final boolean MAPPED; // not for bundles
+	// compression: payloads are deflated at rft.compress (0 off, 1 fastest .. 9) by the
+	// reading thread, sampled a buffer at a time, so incompressible data goes raw at no cost.
+	// not for mapped reads, whose payloads are never copied
+	private static final int DEFLATE_LEVEL = Integer.getInteger("rft.compress", 0);
+	private final boolean DEFLATE_WANTED;
+	private boolean deflate; // once the receiver agrees
+	// fec: rft.fec is xor (one parity pkt per group) or rs (rft.fec.parity of them), built by
+	// the reading thread over groups of rft.fec.group pkts, or a size adapted to the losses.
+	// a receiver rebuilds from what it has written, so not for bundles, nor mapped reads
+	private static final String FEC_CODE = System.getProperty("rft.fec", "none");
+	private static final int FEC_PARITIES = FEC_CODE.equals("xor") ? 1
+			: FEC_CODE.equals("rs") ? Integer.getInteger("rft.fec.parity", 2) : 0;
+	private static final int FEC_GROUP = Integer.getInteger("rft.fec.group", 0);
+	private static final int PAYLOAD_CUT = FEC_PARITIES > 0 ? PARITY_HEADER_SIZE - HEADER_SIZE : 0;
+	private final boolean FEC_WANTED;
+	// rft.checksum crc32c asks for CRC32C, computed in hardware on most CPUs. a receiver that
+	// does not know the flag ignores it, and both ends stay on CRC32
+	private static final boolean CRC32C_WANTED = "crc32c".equals(System.getProperty("rft.checksum"));
+	private Fec FEC; // once the receiver agrees
+	private final Queue<ParityGroup> PARITY_Q; // complete groups, in order
+	private final Queue<ParityGroup> FREE_PARITY_Q;
+	private int parity_pos; // next parity pkt of the group at the head
+	private static final long MAP_BUDGET = 64*1024*1024;
+	private final long MAP_WINDOW; // whole packets per window
+	private final BlockingQueue<MappedByteBuffer> MAPPED_Q; // windows mapped and loaded ahead
+	private MappedByteBuffer mapped; // window being sent from
+	private int map_pos;
+	private static final long ACK_TIMEOUT = 4*1000*1000; // ns, initial RTO until RTT is measured
+	private static final long WHEEL_TICK = Long.getLong("rft.wheel.tick", 250) * 1000; // us -> ns
+	private static final int WHEEL_SLOTS = 1024;
+	private final ReceiverThread ACK_RECEIVER;
 	private final Thread RECEIVER_THREAD;
-	private final Thread FILEREADER_THREAD;
-	private final Timer SCHEDULER; // daemon
-	private final int TOTAL_PACKETS;
-	private final Map<Integer, ResendTimerTask> TIMEOUT_CACHE;
-	private final Queue<ResendTimerTask> RESEND_Q;
+	private Thread FILEREADER_THREAD; // started once the SACK says where to read from
+	private final TimingWheel SCHEDULER; // driven by sendLoop only
+	private final RttEstimator RTT;
+	private final CongestionControl CONGESTION;
+	private final AtomicInteger IN_FLIGHT; // sent and not yet retired
+	// pacing: packets/s, 0 follows the congestion controller, -1 sends back to back
+	private static final double PACE_RATE = Double.parseDouble(System.getProperty("rft.pace.rate", "0"));
+	private static final double PACE_BURST = Double.parseDouble(System.getProperty("rft.pace.burst", "4"));
+	private final Pacer PACER;
+	private final long TOTAL_PACKETS;
+	private final SeqRing<ResendTimerTask> TIMEOUT_CACHE;
 	private final BlockingQueue<ResendTimerTask> FREE_RSTT_Q;
 	private final Queue<ByteBuffer[]> FILLED_BUFFER_Q;
 	private final BlockingQueue<ByteBuffer[]> EMPTY_BUFFER_Q;
-	private int packets_sent;
+	private long packets_sent;
+	private long timeouts; // resends, spurious ones included
+	private long[] resumed; // ranges the receiver holds above the resume floor, start/end pairs
+	private int resumed_next; // first range not behind packets_sent
 	private int buffer_pos;
 	private int pkts_created;
 
@@ -72,18 +186,36 @@ public class FileSender {
 			return;
 		}
 
-		FileSender sender = new FileSender(args);
+		// probes, the others reuse its size
+		FileSender sender = new FileSender(args, FIXED_PAYLOAD > 0 ? FIXED_PAYLOAD - PAYLOAD_CUT : 0, RANGES, 0);
+		for (int i = 1; i < sender.RANGE.count; i++) {
+			new Thread(new RangeSender(args, sender.DATA_SIZE, sender.RANGE.count, i)).start();
+		}
 		sender.sync().initialise();
 		sender.sendLoop();
 	}
 
-	public FileSender (String[] args) throws Exception {
+	// dataSize 0 probes the path for it
+	public FileSender (String[] args, int dataSize, int ranges, int range) throws Exception {
 
 		// Initialise file data
 		SRC_FILE_PATH = args[2].trim();
 		DST_FILE_PATH = args[3].trim();
-		FILECHANNEL = (new FileInputStream(SRC_FILE_PATH)).getChannel();
-		FILE_SIZE = FILECHANNEL.size();
+		BUNDLE = new File(SRC_FILE_PATH).isDirectory();
+		if (BUNDLE) {
+			final Manifest manifest = Manifest.of(new File(SRC_FILE_PATH).toPath());
+			final BundleReader bundle = new BundleReader(manifest);
+			SOURCE = bundle;
+			FILE_SIZE = bundle.size();
+			log("sending directory, " + manifest.count() + " files");
+		} else {
+			FILECHANNEL = (new FileInputStream(SRC_FILE_PATH)).getChannel();
+			SOURCE = FILECHANNEL;
+			FILE_SIZE = FILECHANNEL.size();
+		}
+		MAPPED = READ_MAPPED && !BUNDLE;
+		DEFLATE_WANTED = DEFLATE_LEVEL > 0 && !MAPPED;
+		FEC_WANTED = FEC_PARITIES > 0 && !MAPPED && !BUNDLE;
 
 		// Initialise connection
 		RCV_ADDR = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
@@ -92,71 +224,156 @@ public class FileSender {
 		UDP_CHANNEL.setOption(SO_RCVBUF, 4*1024*1024);
 
 		// Other misc init
-		CHECKSUM = new CRC32();
-		int temp = (int)(FILE_SIZE / DATA_SIZE);
-		if (temp < 0) {
-			throw new Exception("\nFILE TOO BIG\n");
-		}
-		if (FILE_SIZE % DATA_SIZE > 0) {
-			temp++;
+		CODEC = new PacketCodec();
+		DATA_SIZE = dataSize > 0 ? dataSize : probePayloadSize();
+		PACKET_SIZE = HEADER_SIZE + DATA_SIZE;
+		RANGE = new FileRange(FILE_SIZE, DATA_SIZE, BUNDLE ? 1 : FileRange.cap(FILE_SIZE, DATA_SIZE, ranges), range);
+		if (!BUNDLE) {
+			FILECHANNEL.position(RANGE.offset);
 		}
-		TOTAL_PACKETS = temp;
+		MAX_EXISTING_PACKETS = Math.max(CongestionControl.INITIAL_WINDOW, Math.min(4*1024, SEND_BUDGET / PACKET_SIZE));
+		DATA_BUFFER_SIZE = Math.max(1, Math.min(2*1024, READ_BUDGET / DATA_SIZE));
+		MAP_WINDOW = MAP_BUDGET / DATA_SIZE * DATA_SIZE;
+		log("payload size " + DATA_SIZE + " bytes"
+				+ (RANGE.count > 1 ? ", range " + RANGE.index + " of " + RANGE.count + " at " + RANGE.offset : ""));
+		TOTAL_PACKETS = RANGE.packets(DATA_SIZE);
 		packets_sent = 0;
-		TIMEOUT_CACHE = new BlockingHashMap<Integer, ResendTimerTask>();
-		RESEND_Q = new LinkedList<ResendTimerTask>();
-		FREE_RSTT_Q = new LinkedBlockingQueue<ResendTimerTask>();
+		resumed = new long[0];
+		DELTA = DELTA_WANTED && !BUNDLE && TOTAL_PACKETS > 0 && TOTAL_PACKETS < Integer.MAX_VALUE - 8;
+		SIGNATURES = new FutureTask<long[]>(() -> BlockSignatures.of(FILECHANNEL, RANGE.offset, RANGE.length, DATA_SIZE));
+		if (DELTA) {
+			new Thread(SIGNATURES).start();
+		}
+		// twice the window, so a slot is never reused while the ACK path may still retire from it
+		TIMEOUT_CACHE = new SeqRing<ResendTimerTask>(2*SEQ_WINDOW);
+		FREE_RSTT_Q = new ArrayBlockingQueue<ResendTimerTask>(MAX_EXISTING_PACKETS);
 		FILLED_BUFFER_Q = new LinkedList<ByteBuffer[]>();
 		EMPTY_BUFFER_Q = new LinkedBlockingQueue<ByteBuffer[]>();
-		SCHEDULER = new Timer(true);
+		MAPPED_Q = new ArrayBlockingQueue<MappedByteBuffer>(1);
+		PARITY_Q = new ConcurrentLinkedQueue<ParityGroup>();
+		FREE_PARITY_Q = new ConcurrentLinkedQueue<ParityGroup>();
+		SCHEDULER = new TimingWheel(WHEEL_TICK, WHEEL_SLOTS, System.nanoTime());
+		RTT = new RttEstimator(ACK_TIMEOUT);
+		CONGESTION = CongestionControl.create(System.getProperty("rft.cc"), MAX_EXISTING_PACKETS);
+		IN_FLIGHT = new AtomicInteger(0);
+		PACER = new Pacer(PACE_RATE, PACE_BURST);
 		pkts_created = 0;
 
 		// create unique SYN packet
 		byte[] destPath = DST_FILE_PATH.getBytes(CHARSET_NET);
-		SYN = ByteBuffer.wrap(new byte[SYN_HEADER_SIZE + destPath.length]);
-		SYN.position(CHECKSUM_SIZE);
-		SYN.put(CTRL_SYN).putInt(TOTAL_PACKETS).put(destPath);
-		CHECKSUM.reset();
-		CHECKSUM.update(SYN.array(), CHECKSUM_SIZE, SYN.array().length - CHECKSUM_SIZE);
-		SYN.putInt(0, (int)CHECKSUM.getValue()).clear();
+		SYN = CODEC.syn(ByteBuffer.allocate(SYN_HEADER_SIZE + destPath.length), FILE_SIZE, DATA_SIZE,
+				RANGE.count, RANGE.index, BUNDLE ? KIND_DIR : DELTA ? KIND_DELTA : KIND_FILE,
+				(byte)((DEFLATE_WANTED ? FLAG_DEFLATE : 0) | (FEC_WANTED ? FLAG_FEC : 0) | (CRC32C_WANTED ? FLAG_CRC32C : 0)),
+				BUNDLE ? 0 : Checkpoint.source(FILECHANNEL, FILE_SIZE, DATA_SIZE,
+						new File(SRC_FILE_PATH).lastModified()),
+				SESSION_ID, destPath);
 		// SYN packet created.
 
-		ResendTimerTask.initialise(RESEND_Q, TIMEOUT_CACHE);
-		// create the rstts
-
-		RECEIVER_THREAD = new Thread(new ReceiverThread(
+		ACK_RECEIVER = new ReceiverThread(
 				UDP_CHANNEL,
 				TIMEOUT_CACHE,
 				FREE_RSTT_Q,
+				RTT,
+				CONGESTION,
+				IN_FLIGHT,
+				PACE_RATE == 0 ? PACER : null,
 				Thread.currentThread()
-			));
-
-		FILEREADER_THREAD = new Thread(new FileReadingThread(
-				FILECHANNEL,
-				EMPTY_BUFFER_Q,
-				FILLED_BUFFER_Q
-			));
-		FILEREADER_THREAD.start(); // start file io thread
+			);
+		RECEIVER_THREAD = new Thread(ACK_RECEIVER);
 
-		// create file data buffers
-		ByteBuffer[] newDataBuff;
-		for (int i = 0; i < NUM_DATA_BUFFERS; i++) {
-			newDataBuff = new ByteBuffer[DATA_BUFFER_SIZE];
-			for (int j = 0; j < DATA_BUFFER_SIZE; j++) {
-				newDataBuff[j] = ByteBuffer.allocate(DATA_SIZE);
+		if (!MAPPED) {
+			// create file data buffers
+			ByteBuffer[] newDataBuff;
+			for (int i = 0; i < NUM_DATA_BUFFERS; i++) {
+				newDataBuff = new ByteBuffer[DATA_BUFFER_SIZE];
+				for (int j = 0; j < DATA_BUFFER_SIZE; j++) {
+					newDataBuff[j] = ByteBuffer.allocate(DATA_SIZE);
+				}
+				EMPTY_BUFFER_Q.add(newDataBuff);
 			}
-			EMPTY_BUFFER_Q.add(newDataBuff);
 		}
 
 		log("New FileSender created.\n");
 	}
 
+	// path MTU discovery: probes upward with padded datagrams, and settles on the largest
+	// size whose probes come back. returns the payload size.
+	private int probePayloadSize () throws IOException {
+		final DatagramSocket sk = UDP_CHANNEL.socket();
+		final DatagramPacket echo = new DatagramPacket(new byte[PROBE_ACK_SIZE], PROBE_ACK_SIZE);
+		int max = MAX_PACKET;
+		if (setDontFragment()) {
+			log("Probing path MTU with DF set...");
+		} else {
+			if (!MAX_PACKET_SET) {
+				max = Math.min(MAX_PACKET, UNFRAGMENTED_MAX);
+			}
+			log("DF cannot be set on this JVM (needs JDK 19+), so oversized probes would be fragmented."
+					+ " Probing path MTU up to " + max + " bytes" + (MAX_PACKET_SET ? "..." : ", rft.mtu.max raises it..."));
+		}
+		final ByteBuffer probe = ByteBuffer.allocateDirect(Math.max(PROBE_SIZES[0], max));
+		sk.setSoTimeout(PROBE_TIMEOUT);
+		while (probe(probe, PROBE_SIZES[0], sk, echo) == 0) { // the base size must work, waits for the receiver
+			log("probe timeout, resend...");
+		}
+		int size = PROBE_SIZES[0];
+		for (int i = 1; i < PROBE_SIZES.length && PROBE_SIZES[i] <= max; i++) {
+			if (probe(probe, PROBE_SIZES[i], sk, echo) < PROBE_BURST - 1) {
+				break;
+			}
+			size = PROBE_SIZES[i];
+		}
+		log("path MTU probe settled on " + size + " byte packets");
+		return size - HEADER_SIZE - PAYLOAD_CUT;
+	}
+	// sends a burst of probes of this size. returns how many were echoed.
+	private int probe (ByteBuffer probe, int size, DatagramSocket sk, DatagramPacket echo) throws IOException {
+		CODEC.begin(probe, CTRL_PRB).limit(size);
+		probe.putInt(size);
+		while (probe.hasRemaining()) {
+			probe.put((byte)0);
+		}
+		CODEC.seal(probe);
+		int echoed = 0;
+		try {
+			for (int i = 0; i < PROBE_BURST; i++) {
+				probe.rewind();
+				UDP_CHANNEL.write(probe);
+			}
+			while (echoed < PROBE_BURST) {
+				sk.receive(echo);
+				final ByteBuffer e = ByteBuffer.wrap(echo.getData(), 0, echo.getLength());
+				if (e.limit() == PROBE_ACK_SIZE && !isCorrupted(e)
+						&& e.get(CTRL_INDEX) == CTRL_PRB && e.getInt(HEADER_DATA_INDEX) == size) {
+					echoed++;
+				}
+			}
+		} catch (SocketTimeoutException | PortUnreachableException e) { // lost, or receiver not up yet
+		} catch (IOException e) { // too big for the local interface, or refused under DF
+			return 0;
+		}
+		return echoed;
+	}
+	// so oversized probes are dropped instead of fragmented. needs jdk.net.ExtendedSocketOptions.IP_DONTFRAGMENT (JDK 19+)
+	@SuppressWarnings("unchecked")
+	private boolean setDontFragment () {
+		try {
+			final SocketOption<Boolean> df = (SocketOption<Boolean>)Class.forName("jdk.net.ExtendedSocketOptions")
+					.getField("IP_DONTFRAGMENT").get(null);
+			UDP_CHANNEL.setOption(df, true);
+			return true;
+		} catch (ReflectiveOperationException | IOException | UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
 	// ensures the receiver receives valid SYN packet and is set up
 	public FileSender sync () throws Exception {
 		log("Syncing...");
 		// prepare for handshaking
 		final DatagramSocket sk = UDP_CHANNEL.socket();
-		final byte[] SACK_data = new byte[SACK_SIZE];
-		final DatagramPacket SACK = new DatagramPacket(SACK_data, SACK_SIZE);
+		final byte[] SACK_data = new byte[SACK_MAX_SIZE];
+		final DatagramPacket SACK = new DatagramPacket(SACK_data, SACK_MAX_SIZE);
 		sk.setSoTimeout(SACK_TIMEOUT);
 
 		log("Sending SYN...");
@@ -167,8 +384,23 @@ public class FileSender {
 			SYN.rewind();
 			try {
 				sk.receive(SACK);
-				if (!isCorrupted(SACK) && SACK.getData()[HEADER_DATA_INDEX] == 0) {
+				if (!isCorrupted(SACK) && SACK.getData()[CTRL_INDEX] == CTRL_SYN
+						&& SACK.getData()[HEADER_DATA_INDEX] >= 0) {
 					log("SACK success!");
+					resume(ByteBuffer.wrap(SACK_data, SACK_SIZE, SACK.getLength() - SACK_SIZE));
+					final byte result = SACK.getData()[HEADER_DATA_INDEX];
+					if (CRC32C_WANTED && (result & RESULT_CRC32C) != 0) {
+						CODEC.useCrc32c();
+						ACK_RECEIVER.useCrc32c();
+						log("checksums: CRC32C");
+					}
+					deflate = DEFLATE_WANTED && (result & RESULT_DEFLATE) != 0;
+					if (FEC_WANTED && (result & RESULT_FEC) != 0) {
+						FEC = new Fec(FEC_PARITIES, FEC_GROUP);
+					}
+					if (DELTA && (result & RESULT_SIGNATURES) != 0) {
+						compareSignatures();
+					}
 					break; // uncorrupted success SACK received. sync complete.
 				}
 				log("corrupted/failure SACK, resending SYN...");
@@ -179,24 +411,126 @@ public class FileSender {
 		log("Syncing succeeded!\n");
 		return this;
 	}
+	// what the receiver holds from an interrupted transfer: sending starts at its floor and
+	// steps over its ranges. nothing after a plain SACK
+	private void resume (ByteBuffer held) {
+		if (held.remaining() < SackTracker.HEADER_SIZE) {
+			return;
+		}
+		final long floor = Math.min(held.getLong(), TOTAL_PACKETS);
+		final int numRanges = Math.min(held.get() & 0xFF, held.remaining() / SackTracker.RANGE_SIZE);
+		resumed = new long[2 * numRanges];
+		for (int i = 0; i < resumed.length; i++) {
+			resumed[i] = floor + held.getInt();
+		}
+		packets_sent = floor;
+		if (floor > 0 || numRanges > 0) {
+			log("resuming at packet " + floor + " of " + TOTAL_PACKETS + ", " + numRanges + " ranges above it held");
+		}
+	}
 
 	private boolean isCorrupted (ByteBuffer pkt) {
-		final int proposed = pkt.getInt();
-		final byte[] dat = new byte[pkt.limit() - pkt.position()];
-		pkt.get(dat);
-		CHECKSUM.reset();
-		CHECKSUM.update(dat);
-		final int actual = (int)CHECKSUM.getValue();
-		pkt.rewind();
-		return proposed != actual;
+		return !CODEC.valid(pkt);
 	}
 	private boolean isCorrupted (DatagramPacket pkt) {
-		return isCorrupted(ByteBuffer.wrap(pkt.getData()));
+		return isCorrupted(ByteBuffer.wrap(pkt.getData(), 0, pkt.getLength()));
+	}
+
+	// delta: fetches the receiver's signatures a burst of requests at a time and marks the
+	// blocks that match. the first answer's digest settles an unchanged file on its own
+	private void compareSignatures () throws Exception {
+		final long[] local = SIGNATURES.get();
+		final int perAnswer = (DATA_SIZE - 8) / 8;
+		final int answers = (local.length + perAnswer - 1) / perAnswer;
+		final long[] remote = new long[local.length];
+		final BitSet fetched = new BitSet(answers);
+		final DatagramSocket sk = UDP_CHANNEL.socket();
+		final DatagramPacket answer = new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE);
+		final ByteBuffer request = ByteBuffer.allocate(HEADER_SIZE);
+		sk.setSoTimeout(PROBE_TIMEOUT);
+		unchanged = new BitSet(local.length);
+		while (fetched.cardinality() < answers) {
+			int asked = 0;
+			for (int i = fetched.nextClearBit(0); i < answers && asked < (fetched.isEmpty() ? 1 : SIG_BURST);
+					i = fetched.nextClearBit(i + 1)) {
+				CODEC.begin(request, CTRL_SIG).putLong((long)i * perAnswer);
+				UDP_CHANNEL.write(CODEC.seal(request));
+				asked++;
+			}
+			try {
+				for (int got = 0; got < asked; ) {
+					sk.receive(answer);
+					final ByteBuffer a = ByteBuffer.wrap(answer.getData(), 0, answer.getLength());
+					if (a.limit() < HEADER_SIZE + 8 || isCorrupted(a) || a.get(CTRL_INDEX) != CTRL_SIG) {
+						continue; // a late SACK
+					}
+					final long first = a.getLong(HEADER_DATA_INDEX);
+					if (first < 0 || first >= local.length || first % perAnswer != 0
+							|| fetched.get((int)(first / perAnswer))) {
+						continue;
+					}
+					if (fetched.isEmpty() && a.getLong(HEADER_SIZE) == BlockSignatures.digest(local)) {
+						unchanged.set(0, local.length);
+						log("delta: unchanged, nothing to send");
+						return;
+					}
+					a.position(HEADER_SIZE + 8);
+					for (int b = (int)first; b < local.length && a.remaining() >= 8; b++) {
+						remote[b] = a.getLong();
+					}
+					fetched.set((int)(first / perAnswer));
+					got++;
+				}
+			} catch (SocketTimeoutException ste) { // ask again for what is still missing
+			}
+		}
+		for (int b = 0; b < local.length; b++) {
+			if (local[b] == remote[b]) {
+				unchanged.set(b);
+			}
+		}
+		log("delta: " + unchanged.cardinality() + " of " + local.length + " blocks unchanged");
 	}
 	// Sets up send buffers and preloads?
 	public FileSender initialise () throws Exception {
 		/////////////////////////////////
 
+		// read from the resume floor on
+		final long start = RANGE.offset + packets_sent * DATA_SIZE;
+		if (MAPPED) {
+			FILEREADER_THREAD = new Thread(new FileMappingThread(
+					FILECHANNEL,
+					start,
+					RANGE.offset + RANGE.length - start,
+					MAP_WINDOW,
+					MAPPED_Q
+				));
+			log("sending from mapped source, " + MAP_WINDOW/1024 + " KB windows");
+		} else {
+			if (!BUNDLE) {
+				FILECHANNEL.position(start);
+			}
+			FILEREADER_THREAD = new Thread(new FileReadingThread(
+					SOURCE,
+					EMPTY_BUFFER_Q,
+					FILLED_BUFFER_Q,
+					deflate ? DEFLATE_LEVEL : 0,
+					FEC,
+					packets_sent,
+					TOTAL_PACKETS,
+					PARITY_Q,
+					FREE_PARITY_Q
+				));
+			if (deflate) {
+				log("deflating payloads at level " + DEFLATE_LEVEL);
+			}
+			if (FEC != null) {
+				log("fec: " + FEC.parities() + " parity pkts per group of "
+						+ (FEC_GROUP > 0 ? FEC_GROUP : "adaptive size, " + Fec.MIN_GROUP + " to " + Fec.MAX_GROUP));
+			}
+		}
+		FILEREADER_THREAD.start(); // start file io thread
+		ACK_RECEIVER.resumeAt(packets_sent);
 		RECEIVER_THREAD.start(); // start rcv thread.
 		return this;
 	}
@@ -212,178 +546,365 @@ public class FileSender {
 			}
 
 			// resend timed out packets first!
-			nextRSTT = RESEND_Q.poll();
+			final long now = System.nanoTime();
+			nextRSTT = (ResendTimerTask)SCHEDULER.poll(now);
 			if (nextRSTT != null) {
-				nextRSTT = new ResendTimerTask(nextRSTT);
-				SCHEDULER.schedule(nextRSTT, ACK_TIMEOUT);
-				TIMEOUT_CACHE.put(nextRSTT.getSeqN(), nextRSTT);
-				UDP_CHANNEL.write(nextRSTT.getPkt());
-				nextRSTT.getPkt().rewind();
+				// only resend if the ACK path has not already retired (and maybe recycled) this packet
+				if (!TIMEOUT_CACHE.remove(nextRSTT.getSeqN(), nextRSTT)) {
+					continue;
+				}
+				if (nextRSTT.isResent()) { // lost again, back off
+					RTT.backoff(now);
+				}
+				CONGESTION.onLoss(nextRSTT.getSeqN(), packets_sent, now);
+				if (FEC != null) {
+					FEC.onLoss();
+				}
+				nextRSTT.setResent(true); // Karn: its ACK no longer gives an RTT sample
+				// timed from when the pacer lets it go, not from before the wait
+				final long sent = PACER.await(now);
+				arm(nextRSTT, sent);
+				if (ACK_RECEIVER.isBelowFloor(nextRSTT.getSeqN())) {
+					// floor passed it while it was out of the cache, no later ACK would retire it.
+					// it goes unsent, so no duplicate will show the timeout spurious: take it back
+					// here
+					if (TIMEOUT_CACHE.remove(nextRSTT.getSeqN(), nextRSTT)) {
+						SCHEDULER.cancel(nextRSTT);
+						IN_FLIGHT.decrementAndGet();
+						FREE_RSTT_Q.add(nextRSTT);
+					}
+					CONGESTION.onSpuriousLoss(nextRSTT.getSeqN(), sent);
+					continue;
+				}
+				timeouts++;
+				transmit(nextRSTT);
+				continue;
+			}
+
+			// fec: a group's parity goes out once the loop is past its last pkt. a group the
+			// receiver holds whole from a delta goes without
+			if (FEC != null && PARITY_Q.peek() != null
+					&& PARITY_Q.peek().first + PARITY_Q.peek().k <= packets_sent) {
+				final ParityGroup group = PARITY_Q.peek();
+				if (parity_pos == 0 && unchanged != null
+						&& unchanged.nextClearBit((int)group.first) >= group.first + group.k) {
+					parity_pos = group.parity.length;
+				}
+				if (parity_pos < group.parity.length) {
+					PACER.await(now);
+					UDP_CHANNEL.write(prepareParityPacket(group, parity_pos++));
+				}
+				if (parity_pos == group.parity.length) {
+					FREE_PARITY_Q.add(PARITY_Q.poll());
+					parity_pos = 0;
+				}
 				continue;
 			}
 
 			// if already read whole file, go back and check resend q again
 			if (packets_sent >= TOTAL_PACKETS) {
-				FILECHANNEL.close();
+				SOURCE.close();
 				if (!UDP_CHANNEL.isOpen()) { // in case no more resends but channel just closed.
 					break;
 				}
 				if (FILEREADER_THREAD.isAlive()) { // kill thread for sure
 					FILEREADER_THREAD.interrupt();
 				}
-				Thread.sleep(1);
+				LockSupport.parkNanos(WHEEL_TICK); // until the next tick, an ACK or the FIN
 				continue;
 			}
 
-			// send next 
-			dataBuff = FILLED_BUFFER_Q.peek(); // get the current data buffer
-			nextRSTT = getFreeRSTT();
-			if (nextRSTT == null || dataBuff == null) { // continue if no RSTT or buffer available
-				Thread.sleep(1);
-				log("out of free RSTTs");
+			// the receiver has it from an interrupted transfer, step over it unsent
+			if (isResumed(packets_sent)) {
+				if (skip()) {
+					packets_sent++;
+				} else {
+					LockSupport.parkNanos(WHEEL_TICK);
+				}
 				continue;
 			}
-			// has available RSTT and buffer
-			ByteBuffer data = dataBuff[buffer_pos];
-			UDP_CHANNEL.write(prepareDataPacket(nextRSTT, packets_sent, data));
-			SCHEDULER.schedule(nextRSTT, ACK_TIMEOUT);
-			TIMEOUT_CACHE.put(packets_sent, nextRSTT);
-			packets_sent++;
-			buffer_pos++;
 
-			if (buffer_pos == DATA_BUFFER_SIZE) { // time to swap out buffer
-				EMPTY_BUFFER_Q.add(FILLED_BUFFER_Q.remove());
-				buffer_pos = 0;
+			// window full: wait for an ACK (ReceiverThread unparks us) or the next timer tick
+			if (IN_FLIGHT.get() >= CONGESTION.window()
+					|| packets_sent - ACK_RECEIVER.ackFloor() >= SEQ_WINDOW) {
+				LockSupport.parkNanos(WHEEL_TICK);
+				continue;
+			}
+
+			// delta: a run of unchanged blocks goes as one HOLD, their data is stepped over
+			if (unchanged != null && unchanged.get((int)packets_sent)) {
+				nextRSTT = getFreeRSTT();
+				if (nextRSTT == null) {
+					LockSupport.parkNanos(WHEEL_TICK);
+					continue;
+				}
+				final long limit = Math.min(TOTAL_PACKETS, ACK_RECEIVER.ackFloor() + SEQ_WINDOW);
+				long end = packets_sent;
+				while (end < limit && unchanged.get((int)end) && skip()) {
+					end++;
+				}
+				if (end == packets_sent) { // data not read in yet
+					FREE_RSTT_Q.add(nextRSTT);
+					LockSupport.parkNanos(WHEEL_TICK);
+					continue;
+				}
+				final long sent = PACER.await(now);
+				transmit(prepareHoldPacket(nextRSTT, packets_sent, end));
+				nextRSTT.setSentAt(sent);
+				nextRSTT.setResent(false);
+				IN_FLIGHT.incrementAndGet();
+				arm(nextRSTT, sent);
+				packets_sent = end;
+				continue;
+			}
+
+			// send next, timed from when the pacer lets it go
+			final long sent;
+			if (MAPPED) {
+				if (mapped == null) { // move on to the next window
+					mapped = MAPPED_Q.poll();
+					map_pos = 0;
+				}
+				nextRSTT = mapped == null ? null : getFreeRSTT();
+				if (nextRSTT == null) { // continue if no RSTT or window available
+					LockSupport.parkNanos(WHEEL_TICK);
+					continue;
+				}
+				sent = PACER.await(now);
+				transmit(prepareMappedPacket(nextRSTT, packets_sent, map_pos));
+				map_pos++;
+				if ((long)map_pos * DATA_SIZE >= mapped.capacity()) {
+					mapped = null; // resends keep their views, and so the mapping, alive
+				}
+			} else {
+				dataBuff = FILLED_BUFFER_Q.peek(); // get the current data buffer
+				nextRSTT = dataBuff == null ? null : getFreeRSTT();
+				if (nextRSTT == null) { // continue if no RSTT or buffer available
+					LockSupport.parkNanos(WHEEL_TICK);
+					continue;
+				}
+				// has available RSTT and buffer
+				ByteBuffer data = dataBuff[buffer_pos];
+				sent = PACER.await(now);
+				transmit(prepareDataPacket(nextRSTT, packets_sent, data));
+				buffer_pos++;
+
+				if (buffer_pos == DATA_BUFFER_SIZE) { // time to swap out buffer
+					EMPTY_BUFFER_Q.add(FILLED_BUFFER_Q.remove());
+					buffer_pos = 0;
+				}
+			}
+			nextRSTT.setSentAt(sent);
+			nextRSTT.setResent(false);
+			IN_FLIGHT.incrementAndGet();
+			arm(nextRSTT, sent);
+			packets_sent++;
+			if (FEC != null) {
+				FEC.onSent();
 			}
 
 		} } catch (ClosedChannelException ce) {
 			log("DatagramChannel closed by receiver thread because FIN received..");
 			ce.printStackTrace();
-		} catch (InterruptedException ie) {
-			log("Interrupted by FIN, exiting..");
 		}
 		finish();
 		return this;
 	}
 
-	private void finish () {
+	// seqN only grows, so the ranges are walked once
+	private boolean isResumed (long seqN) {
+		while (resumed_next < resumed.length && resumed[resumed_next + 1] <= seqN) {
+			resumed_next += 2;
+		}
+		return resumed_next < resumed.length && resumed[resumed_next] <= seqN;
+	}
+	// moves past the next packet's data without sending it. false if it is not read in yet
+	private boolean skip () {
+		if (MAPPED) {
+			if (mapped == null) {
+				mapped = MAPPED_Q.poll();
+				map_pos = 0;
+				if (mapped == null) {
+					return false;
+				}
+			}
+			map_pos++;
+			if ((long)map_pos * DATA_SIZE >= mapped.capacity()) {
+				mapped = null;
+			}
+		} else {
+			if (FILLED_BUFFER_Q.peek() == null) {
+				return false;
+			}
+			buffer_pos++;
+			if (buffer_pos == DATA_BUFFER_SIZE) {
+				EMPTY_BUFFER_Q.add(FILLED_BUFFER_Q.remove());
+				buffer_pos = 0;
+			}
+		}
+		return true;
+	}
+
+	// one datagram: the whole packet, or its header gathered with the mapped payload
+	private void transmit (ResendTimerTask rstt) throws IOException {
+		rstt.writeTo(UDP_CHANNEL);
+	}
 
+	// a retired rstt may still sit in the wheel, arming relinks it
+	private void arm (ResendTimerTask rstt, long now) {
+		SCHEDULER.arm(rstt, RTT.rto(), now);
+		TIMEOUT_CACHE.put(rstt.getSeqN(), rstt);
+	}
+
+	private void finish () {
+		FILEREADER_THREAD.interrupt(); // may still be blocked waiting for an empty buffer
+		log("final window " + CONGESTION.window() + " pkts, srtt " + RTT.srtt()/1000 + "us, rto " + RTT.rto()/1000 + "us, "
+				+ timeouts + " timeouts, " + ACK_RECEIVER.spurious() + " spurious");
+		log(String.format("paced %d pkts, %d waited: target %.0f pkts/s, achieved %.0f pkts/s between back to back waits,"
+				+ " %.1fus late a wait", PACER.paced(), PACER.waited(), PACER.targetRate(), PACER.achievedRate(),
+				PACER.lateness() / 1000));
 	}
 
 	private ResendTimerTask getFreeRSTT () {
 		ResendTimerTask rstt = FREE_RSTT_Q.poll();
 		if (rstt != null) { 
-			return new ResendTimerTask(rstt);
+			return rstt;
 		}
 		if (pkts_created >= MAX_EXISTING_PACKETS) {
 			return null;
 		}
-		rstt = new ResendTimerTask(ByteBuffer.allocateDirect(PACKET_SIZE));
+		rstt = new ResendTimerTask(ByteBuffer.allocateDirect(MAPPED ? HOLD_SIZE : PACKET_SIZE));
 		pkts_created++;
 		return rstt;
 	}
 
-	private ByteBuffer prepareDataPacket (ResendTimerTask rstt, int seqN, ByteBuffer data) {
+	private ResendTimerTask prepareDataPacket (ResendTimerTask rstt, long seqN, ByteBuffer data) {
 		ByteBuffer pkt = rstt.getPkt();
 		rstt.setSeqN(seqN);
+		CODEC.data(pkt, seqN, data);
+		return rstt;
+	}
 
-		pkt.clear().position(CHECKSUM_SIZE);
-		pkt.put(CTRL_DAT).putInt(seqN).put(data).flip();
+	// delta: seqNs [first, end) are unchanged at the receiver
+	private ResendTimerTask prepareHoldPacket (ResendTimerTask rstt, long first, long end) {
+		ByteBuffer pkt = rstt.getPkt();
+		rstt.setSeqN(first);
+		rstt.setPayload(null);
+		CODEC.begin(pkt, CTRL_HLD).putLong(first).putLong(end);
+		CODEC.seal(pkt);
+		return rstt;
+	}
 
-		CHECKSUM.reset();
-		byte[] check = new byte[pkt.limit() - CHECKSUM_SIZE];
-		pkt.get(check);
-		CHECKSUM.update(check);
+	// fec: parity pkt index of a group, its payload put in place by the reading thread
+	private ByteBuffer prepareParityPacket (ParityGroup group, int index) {
+		final ByteBuffer pkt = group.parity[index];
+		CODEC.begin(pkt, CTRL_PAR).putLong(group.first).put((byte)group.k).put((byte)group.parity.length).put((byte)index)
+				.position(pkt.capacity()); // the parity is already in place behind the header
+		return CODEC.seal(pkt);
+	}
 
-		pkt.putInt(0, (int)CHECKSUM.getValue());
-		pkt.rewind();
+	// header only, the payload is the rstt's view of pkt index of the mapped window
+	private ResendTimerTask prepareMappedPacket (ResendTimerTask rstt, long seqN, int index) {
+		ByteBuffer pkt = rstt.getPkt();
+		rstt.setSeqN(seqN);
+		final int offset = index * DATA_SIZE;
+		CODEC.dataHeader(pkt, seqN, rstt.setMapped(mapped, offset, Math.min(offset + DATA_SIZE, mapped.capacity())));
+		return rstt;
+	}
 
-		return pkt;
+	// one range of a split transfer, built and run on its own thread so that thread is the
+	// one its ReceiverThread unparks
+	private static class RangeSender implements Runnable {
+		private final String[] args;
+		private final int dataSize;
+		private final int ranges;
+		private final int range;
+		public RangeSender (String[] args, int dataSize, int ranges, int range) {
+			this.args = args;
+			this.dataSize = dataSize;
+			this.ranges = ranges;
+			this.range = range;
+		}
+		public void run () {
+			try {
+				new FileSender(args, dataSize, ranges, range).sync().initialise().sendLoop();
+			} catch (Exception e) {
+				log(e);
+				e.printStackTrace();
+			}
+		}
 	}
 
 	public static void log (Object s) {System.out.println(s);}
 }
 
-class ResendTimerTask extends TimerTask {
-	private int seqN;
-	private ByteBuffer pkt;
-	private static Queue<ResendTimerTask> resendQ = null;
-	private static Map<Integer, ResendTimerTask> timerMap = null;
-	public ResendTimerTask (ByteBuffer pkt) {
-		super();
-		this.pkt = pkt;
-		seqN = -1;
-	}
-	public ResendTimerTask (ResendTimerTask old) {
-		super();
-		pkt = old.getPkt();
-		seqN = old.getSeqN();
-	}
+// fec: the parity of one group of pkts, built up by the reading thread and sent by the loop.
+// each buffer has room for the PARITY header before its payload
+class ParityGroup {
+	long first;
+	int k;
+	final ByteBuffer[] parity;
 
-	@Override
-	public void run () {
-		timerMap.remove(seqN);
-		resendQ.add(this);
-	}
-	public int getSeqN () {
-		return seqN;
-	}
-	public ByteBuffer getPkt () {
-		return pkt;
-	}
-	public void setSeqN (int sn) {
-		seqN = sn;
-	}
-	public static void initialise (Queue<ResendTimerTask> rsQueue, Map<Integer, ResendTimerTask> timers) {
-		resendQ = rsQueue;
-		timerMap = timers;
+	public ParityGroup (int parities, int dataSize) {
+		parity = new ByteBuffer[parities];
+		for (int i = 0; i < parities; i++) {
+			parity[i] = ByteBuffer.allocate(FileSender.PARITY_HEADER_SIZE + dataSize);
+		}
 	}
 }
 
 class ReceiverThread implements Runnable {
 
-	private final CRC32 CHECKSUM;
+	private final PacketCodec CODEC;
 	private final DatagramChannel RCV_CHANNEL;
 	private final ByteBuffer FACK;
 	private final ByteBuffer RESPONSE;
-	private final Map<Integer, ResendTimerTask> TIMEOUT_CACHE;
+	private final SeqRing<ResendTimerTask> TIMEOUT_CACHE;
 	private final BlockingQueue<ResendTimerTask> FREE_RSTT_Q;
+	private final RttEstimator RTT;
+	private final CongestionControl CONGESTION;
+	private final AtomicInteger IN_FLIGHT;
+	private final Pacer PACER; // null unless the controller sets the pacing rate
 	private final Thread MAINTHREAD;
+	private long latestSentAt; // newest clean packet retired by the current ACK
+	private int retired; // by the current ACK
+	private volatile int spurious; // resends the receiver already held
+	private volatile long ackFloor; // every seqN below this is acknowledged
 
 	public ReceiverThread (
 			DatagramChannel dc,
-			Map<Integer, ResendTimerTask> timeOutCache,
+			SeqRing<ResendTimerTask> timeOutCache,
 			BlockingQueue<ResendTimerTask> freeQ,
+			RttEstimator rtt,
+			CongestionControl cc,
+			AtomicInteger inFlight,
+			Pacer pacer,
 			Thread main
 		) 
 	{
 		MAINTHREAD = main;
 		RCV_CHANNEL = dc;
-		CHECKSUM = new CRC32();
-		RESPONSE = ByteBuffer.allocate(FileSender.ACK_SIZE);
+		CODEC = new PacketCodec();
+		RESPONSE = ByteBuffer.allocate(FileSender.ACK_MAX_SIZE);
 		TIMEOUT_CACHE = timeOutCache;
 		FREE_RSTT_Q = freeQ;
+		RTT = rtt;
+		CONGESTION = cc;
+		IN_FLIGHT = inFlight;
+		PACER = pacer;
+		ackFloor = 0;
 
 		// prepare F-ACK
-		FACK = ByteBuffer.allocateDirect(FileSender.FIN_SIZE);
-		CHECKSUM.update((int)FileSender.CTRL_FIN);
-		FACK.putInt((int)CHECKSUM.getValue()).put(FileSender.CTRL_FIN).flip();
+		FACK = CODEC.fin(ByteBuffer.allocateDirect(FileSender.FIN_SIZE));
 	}
 
 	public void run () {
-		ResendTimerTask timeOutTask;
 		try {
 			while (true) {
 				RESPONSE.clear();
 				RCV_CHANNEL.read(RESPONSE); // blocking
-				if (RESPONSE.position() < 5) {
-					System.out.println("\nRESPONSETOOSHORT === "+RESPONSE);
-				}
 				RESPONSE.flip();
-				if (RESPONSE.limit() < 5) {
-					System.out.println("\nRESPONSETOOSHORT === "+RESPONSE+'\n');
-				}
-				if (isCorrupted(RESPONSE)) {
+				if (isCorrupted(RESPONSE)) { // short ones included, a later ACK covers the same seqNs
 					continue;
 				}
 				if (isSACK(RESPONSE)) {
@@ -392,41 +913,101 @@ class ReceiverThread implements Runnable {
 				if (isFIN(RESPONSE)) {
 					break;
 				}
-				// is ACK, clear timeout task from resending cache, put into free q
-				if (RESPONSE.limit() < 9) {
+				// is ACK, retire everything it covers in one pass. anything else is a late probe echo
+				if (RESPONSE.limit() < FileSender.ACK_RANGES_INDEX
+						|| RESPONSE.get(FileSender.CTRL_INDEX) != FileSender.CTRL_DAT) {
 					continue;
 				}
-				timeOutTask = TIMEOUT_CACHE.remove(RESPONSE.getInt(FileSender.HEADER_DATA_INDEX));
-				log("received ACK: " + RESPONSE.getInt(FileSender.HEADER_DATA_INDEX));
-				if (timeOutTask != null) {
-					timeOutTask.cancel();
-					FREE_RSTT_Q.add(timeOutTask);
-				}
+				processACK(RESPONSE);
 			}
 			finish();
-		} catch (IndexOutOfBoundsException what) {
-			what.printStackTrace();
-			byte[] x = new byte[RESPONSE.limit()];
-			log("length of pack = " + x.length);
-			RESPONSE.position(0);
-			RESPONSE.get(x);
-			for (int i=0;i<x.length;i++){System.out.print(((int)x[i]) +" ");}
-			log("");
-			System.exit(0);
-		}
-
-		catch (Exception e) {
+		} catch (Exception e) {
 			System.out.println(e);
 			e.printStackTrace();
 		}
 	}
 
-	private void finish () throws Exception {
+	// clears the timeout task of every seqN below the floor or inside a range, puts them into free q
+	private void processACK (ByteBuffer ack) {
+		final long floor = ack.getLong(FileSender.ACK_FLOOR_INDEX);
+		final int numRanges = ack.get(FileSender.ACK_NUMRANGES_INDEX) & 0xFF;
+		if (ack.limit() < FileSender.ACK_RANGES_INDEX + numRanges * SackTracker.RANGE_SIZE) {
+			return;
+		}
+		final long now = System.nanoTime();
+		latestSentAt = Long.MIN_VALUE;
+		retired = 0;
+		// publish the floor before retiring below it, so the sender loop can catch late re-inserts
+		final long oldFloor = ackFloor;
+		if (floor > oldFloor) {
+			ackFloor = floor;
+			for (long seqN = oldFloor; seqN < floor; seqN++) {
+				retire(seqN);
+			}
+		}
+		int index = FileSender.ACK_RANGES_INDEX;
+		for (int r = 0; r < numRanges; r++) {
+			final long end = floor + ack.getInt(index + 4);
+			for (long seqN = floor + ack.getInt(index); seqN < end; seqN++) {
+				retire(seqN);
+			}
+			index += SackTracker.RANGE_SIZE;
+		}
+		// a duplicate means its first send got there and only the ACK came too late: the
+		// timeout that resent it was no sign of loss
+		final int numDups = ack.limit() > index ? ack.get(index++) & 0xFF : 0;
+		if (ack.limit() >= index + numDups * 8) {
+			for (int d = 0; d < numDups; d++, index += 8) {
+				spurious++;
+				CONGESTION.onSpuriousLoss(ack.getLong(index), now);
+			}
+		}
+		if (retired == 0) {
+			return;
+		}
+		IN_FLIGHT.addAndGet(-retired);
+		// one sample per ACK, from the packet whose ACK was least delayed by coalescing
+		long rtt = -1;
+		if (latestSentAt != Long.MIN_VALUE) {
+			rtt = now - latestSentAt;
+			RTT.sample(rtt);
+		}
+		CONGESTION.onAck(retired, rtt, now);
+		if (PACER != null) {
+			PACER.setRate(CONGESTION.pacingRate(RTT.srtt()));
+		}
+		LockSupport.unpark(MAINTHREAD); // window has opened
+	}
+	// before the thread starts: the handshake agreed on CRC32C
+	public void useCrc32c () {
+		CODEC.useCrc32c();
+		CODEC.fin(FACK);
+	}
+	// before the thread starts: the receiver already holds everything below floor
+	public void resumeAt (long floor) {
+		ackFloor = floor;
+	}
+	public boolean isBelowFloor (long seqN) {
+		return seqN < ackFloor;
+	}
+	public long ackFloor () {
+		return ackFloor;
+	}
+	public int spurious () {
+		return spurious;
+	}
+	private void retire (long seqN) {
+		final ResendTimerTask timeOutTask = TIMEOUT_CACHE.remove(seqN);
+		if (timeOutTask != null) { // its wheel slot is left to the sender loop
+			if (!timeOutTask.isResent() && timeOutTask.getSentAt() > latestSentAt) {
+				latestSentAt = timeOutTask.getSentAt();
+			}
+			retired++;
+			FREE_RSTT_Q.add(timeOutTask);
+		}
+	}
 
-		final ByteBuffer FACK = ByteBuffer.allocateDirect(FileSender.FIN_SIZE);
-		CHECKSUM.reset();
-		CHECKSUM.update((int)FileSender.CTRL_FIN);
-		FACK.putInt((int)CHECKSUM.getValue()).put(FileSender.CTRL_FIN).flip();
+	private void finish () throws Exception {
 
 		for (int i = 0; i < 8; i++) { // send 8 FACKS
 			RCV_CHANNEL.write(FACK);
@@ -443,36 +1024,56 @@ class ReceiverThread implements Runnable {
 		return pkt.get(FileSender.CTRL_INDEX) == FileSender.CTRL_FIN;
 	}
 	private boolean isCorrupted (ByteBuffer pkt) {
-		final int proposed = pkt.getInt();
-		final byte[] dat = new byte[pkt.limit() - pkt.position()];
-		pkt.get(dat);
-		CHECKSUM.reset();
-		CHECKSUM.update(dat);
-		final int actual = (int)CHECKSUM.getValue();
-		pkt.rewind();
-		return proposed != actual;
-	}
-	// private boolean isCorrupted (DatagramPacket pkt) {
-	// 	return isCorrupted(ByteBuffer.wrap(pkt.getData()));
-	// }
+		return !CODEC.valid(pkt);
+	}
 	private void log (Object s) {System.out.println(s);}
 }
 
 class FileReadingThread implements Runnable {
 
-	private final FileChannel FILECHANNEL;
+	private final ScatteringByteChannel FILECHANNEL;
 	private final BlockingQueue<ByteBuffer[]> EMPTY_BUFFER_Q;
 	private final Queue<ByteBuffer[]> FILLED_BUFFER_Q;
+	// compression: each payload is deflated on its own so it inflates on its own, whatever
+	// else is lost. a buffer's first payload is the sample, and if that does not shrink by
+	// SAMPLE_GAIN the whole buffer goes raw
+	private static final double SAMPLE_GAIN = 0.9;
+	private final Deflater DEFLATER; // or null
+	private ByteBuffer deflated;
+	private long rawBytes;
+	private long sentBytes;
+	private int buffers;
+	private int bypassed;
+	// fec: parity is added up over the raw payloads as they are read, and a group is queued
+	// before the buffer holding its last pkt, so the loop never waits on it
+	private final Fec FEC; // or null
+	private final long TOTAL; // pkts of the range, the source may read on past it
+	private final Queue<ParityGroup> PARITY_Q;
+	private final Queue<ParityGroup> FREE_PARITY_Q;
+	private long seqN; // next pkt read
+	private ParityGroup group; // being added up
 
 	public FileReadingThread (
-			FileChannel fc, 
+			ScatteringByteChannel fc, 
 			BlockingQueue<ByteBuffer[]> ebq,
-			Queue<ByteBuffer[]> fbq
+			Queue<ByteBuffer[]> fbq,
+			int level, // 0 for none
+			Fec fec,
+			long start,
+			long total,
+			Queue<ParityGroup> pq,
+			Queue<ParityGroup> fpq
 		) 
 	{
 		FILECHANNEL = fc;
 		EMPTY_BUFFER_Q = ebq;
 		FILLED_BUFFER_Q = fbq;
+		DEFLATER = level > 0 ? new Deflater(level, true) : null;
+		FEC = fec;
+		seqN = start;
+		TOTAL = total;
+		PARITY_Q = pq;
+		FREE_PARITY_Q = fpq;
 	}
 
 	public void run () {
@@ -481,10 +1082,16 @@ class FileReadingThread implements Runnable {
 			while (true) {
 				nextBuf = EMPTY_BUFFER_Q.take();
 				clearBBs(nextBuf);
-				if (FILECHANNEL.read(nextBuf) == -1) {
+				if (!fill(nextBuf)) {
 					break;
 				}
 				flipBBs(nextBuf);
+				if (FEC != null) {
+					parity(nextBuf);
+				}
+				if (DEFLATER != null) {
+					deflate(nextBuf);
+				}
 				FILLED_BUFFER_Q.add(nextBuf);
 			}
 		FILECHANNEL.close();
@@ -496,9 +1103,92 @@ class FileReadingThread implements Runnable {
 		} catch (Exception e) {
 			FileSender.log(e);
 			e.printStackTrace();
+		} finally {
+			if (DEFLATER != null) {
+				DEFLATER.end();
+				FileSender.log(String.format("deflate: %d KB read, %d KB to send (%.1f%%), %d of %d buffers raw",
+						rawBytes/1024, sentBytes/1024, 100.0 * sentBytes / Math.max(1, rawBytes), bypassed, buffers));
+			}
 		}
 	}
 
+	// fec: adds each payload into its group's parity, queueing the group once complete
+	private void parity (ByteBuffer[] bufs) {
+		for (ByteBuffer buf : bufs) {
+			if (!buf.hasRemaining() || seqN >= TOTAL) {
+				return;
+			}
+			if (group == null) {
+				group = FREE_PARITY_Q.poll();
+				if (group == null) {
+					group = new ParityGroup(FEC.parities(), buf.capacity());
+				}
+				for (ByteBuffer p : group.parity) {
+					Arrays.fill(p.array(), (byte)0);
+				}
+				group.first = seqN;
+				group.k = (int)Math.min(FEC.group(), TOTAL - seqN);
+			}
+			for (int row = 0; row < group.parity.length; row++) {
+				Fec.encode(group.parity.length, row, (int)(seqN - group.first),
+						group.parity[row].array(), FileSender.PARITY_HEADER_SIZE,
+						buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+			}
+			seqN++;
+			if (seqN == group.first + group.k) {
+				PARITY_Q.add(group);
+				group = null;
+			}
+		}
+	}
+
+	// in place: each payload that deflates smaller is swapped for its deflated bytes
+	private void deflate (ByteBuffer[] bufs) {
+		if (deflated == null) {
+			deflated = ByteBuffer.allocate(bufs[0].capacity());
+		}
+		buffers++;
+		for (ByteBuffer buf : bufs) {
+			rawBytes += buf.remaining();
+		}
+		for (int i = 0; i < bufs.length && bufs[i].hasRemaining(); i++) {
+			final int n = bufs[i].remaining();
+			if (deflate(bufs[i]) > n * SAMPLE_GAIN && i == 0) {
+				bypassed++; // incompressible, the rest goes as it is
+				break;
+			}
+		}
+		for (ByteBuffer buf : bufs) {
+			sentBytes += buf.remaining();
+		}
+	}
+	// returns the deflated size, or more than the payload's if it did not shrink
+	private int deflate (ByteBuffer buf) {
+		final int n = buf.remaining();
+		DEFLATER.reset();
+		DEFLATER.setInput(buf);
+		DEFLATER.finish();
+		deflated.clear().limit(n - 1); // finishing within this is the gain
+		DEFLATER.deflate(deflated);
+		buf.rewind();
+		if (!DEFLATER.finished()) {
+			return n + 1;
+		}
+		deflated.flip();
+		buf.clear();
+		buf.put(deflated).flip();
+		return buf.limit();
+	}
+
+	// a scattering read stops short of the last buffers (IOV_MAX), so keep reading till full or EOF
+	private boolean fill (ByteBuffer[] bufs) throws IOException {
+		long total = 0;
+		long n;
+		while (bufs[bufs.length - 1].hasRemaining() && (n = FILECHANNEL.read(bufs)) != -1) {
+			total += n;
+		}
+		return total > 0;
+	}
 	private void clearBBs (ByteBuffer[] bufs) {
 		for (int i = 0; i < bufs.length; i++) {
 			bufs[i].clear();
@@ -511,23 +1201,133 @@ class FileReadingThread implements Runnable {
 	}
 }
 
-class BlockingHashMap<K,V> extends HashMap<K,V> {
-	public BlockingHashMap () {
-		super();
+// a directory as one stream: its manifest, then each file's bytes in manifest order
+class BundleReader implements ScatteringByteChannel {
+
+	private final Manifest MANIFEST;
+	private final ByteBuffer HEADER; // encoded manifest, read first
+	private int next; // index of the next file to open
+	private FileChannel current;
+	private long left; // bytes of current still to read
+	private volatile boolean open; // closed by the sender loop once everything is sent
+
+	public BundleReader (Manifest manifest) {
+		MANIFEST = manifest;
+		HEADER = manifest.encode();
+		next = 0;
+		open = true;
+	}
+
+	// bytes in the stream
+	public long size () {
+		return HEADER.limit() + MANIFEST.dataSize();
+	}
+
+	public int read (ByteBuffer dst) throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		if (HEADER.hasRemaining()) {
+			final int n = Math.min(HEADER.remaining(), dst.remaining());
+			final int limit = HEADER.limit();
+			HEADER.limit(HEADER.position() + n);
+			dst.put(HEADER);
+			HEADER.limit(limit);
+			return n;
+		}
+		while (current == null || left == 0) {
+			if (current != null) {
+				current.close();
+				current = null;
+			}
+			if (next == MANIFEST.count()) {
+				return -1;
+			}
+			current = FileChannel.open(MANIFEST.files[next]);
+			left = MANIFEST.sizes[next];
+			next++;
+		}
+		// never past the size in the manifest, the receiver cuts the stream by it
+		final int limit = dst.limit();
+		if (dst.remaining() > left) {
+			dst.limit(dst.position() + (int)left);
+		}
+		final int n = current.read(dst);
+		dst.limit(limit);
+		if (n < 0) {
+			throw new IOException("file shrank during transfer: " + MANIFEST.paths[next - 1]);
+		}
+		left -= n;
+		return n;
+	}
+	public long read (ByteBuffer[] dsts, int offset, int length) throws IOException {
+		long total = 0;
+		for (int i = offset; i < offset + length; i++) {
+			while (dsts[i].hasRemaining()) {
+				final int n = read(dsts[i]);
+				if (n < 0) {
+					return total == 0 ? -1 : total;
+				}
+				total += n;
+			}
+		}
+		return total;
 	}
-	public BlockingHashMap (int cap) {
-		super(cap);
+	public long read (ByteBuffer[] dsts) throws IOException {
+		return read(dsts, 0, dsts.length);
 	}
-	@Override
-	public V put (K key, V value) {
-		synchronized (this) {
-			return super.put(key, value);
+
+	public boolean isOpen () {
+		return open;
+	}
+	public void close () throws IOException {
+		open = false;
+		if (current != null) {
+			current.close();
+			current = null;
 		}
 	}
-	@Override
-	public V remove (Object key) {
-		synchronized (this) {
-			return super.remove(key);
+}
+
+// maps the source a window at a time, touching its pages so the sender never waits on the disk
+class FileMappingThread implements Runnable {
+
+	private final FileChannel FILECHANNEL;
+	private final long START;
+	private final long END;
+	private final long WINDOW;
+	private final BlockingQueue<MappedByteBuffer> MAPPED_Q;
+
+	public FileMappingThread (
+			FileChannel fc,
+			long start,
+			long length,
+			long window,
+			BlockingQueue<MappedByteBuffer> mq
+		)
+	{
+		FILECHANNEL = fc;
+		START = start;
+		END = start + length;
+		WINDOW = window;
+		MAPPED_Q = mq;
+	}
+
+	public void run () {
+		try {
+			for (long pos = START; pos < END; pos += WINDOW) {
+				final MappedByteBuffer window = FILECHANNEL.map(
+						FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW, END - pos));
+				window.load();
+				MAPPED_Q.put(window); // blocks while a whole window is still queued
+			}
+		} catch (ClosedChannelException ce) {
+			FileSender.log("Filechannel is closed, filemapping thread terminating!..");
+		} catch (InterruptedException ie) {
+			FileSender.log("Filemapping thread interrupted! terminating!..");
+		} catch (Exception e) {
+			FileSender.log(e);
+			e.printStackTrace();
 		}
 	}
-}
\ No newline at end of file
+}
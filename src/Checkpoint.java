@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * What the receiver holds of one range of a file, kept beside the destination so an
+ * interrupted transfer picks up where it stopped instead of at packet 0:
+ *   4B CRC, 8B FILESIZE, 4B DATASIZE, 1B RANGES, 1B RANGE, 8B SOURCE, then the held seqNs
+ *   as a SackTracker encodes them: 8B FLOOR, 1B NUMRANGES, NUMRANGES * (4B START, 4B END)
+ * The destination is forced to disk before each save, so a checkpoint never claims data
+ * that could still be lost, and it is written aside and renamed over the last one, so it
+ * is never torn. One that does not match the new transfer's sizes, split and SOURCE, the
+ * identity of the sender's file from its SYN, is ignored.
+ */
+public class Checkpoint implements Runnable {
+
+	public static final long INTERVAL = Long.getLong("rft.checkpoint", 1000); // ms between saves, 0 disables
+	private static final String SUFFIX = ".ckpt.";
+	private static final int CHECKSUM_SIZE = 4;
+	private static final int HEADER_SIZE = 26; // up to FLOOR
+
+	private final Path path;
+	private final Path temp;
+	private final FileChannel data;
+	private final ByteBuffer out;
+	private final CRC32 checksum;
+	private long due; // next save, ordered writes
+	private SackTracker received; // positional writes, saved from by the thread
+	private volatile boolean running;
+	private Thread thread;
+
+	public Checkpoint (String dst, long fileSize, int dataSize, FileRange range, long source, FileChannel data) {
+		path = path(dst, range.index);
+		temp = Paths.get(path + ".tmp");
+		this.data = data;
+		out = ByteBuffer.allocate(HEADER_SIZE + SackTracker.HEADER_SIZE + SackTracker.MAX_RANGES * SackTracker.RANGE_SIZE);
+		out.position(CHECKSUM_SIZE);
+		out.putLong(fileSize).putInt(dataSize).put((byte)range.count).put((byte)range.index).putLong(source);
+		checksum = new CRC32();
+		due = System.nanoTime() + INTERVAL * 1000*1000;
+	}
+
+	// identifies a source file by what a resume must not mix: a CRC32 of its first and last
+	// block in the high half, the second it was last modified in the low. sent in the SYN
+	public static long source (FileChannel src, long fileSize, int dataSize, long modified) throws IOException {
+		final CRC32 crc = new CRC32();
+		final ByteBuffer block = ByteBuffer.allocate((int)Math.min(dataSize, fileSize));
+		for (long at : new long[] {0, fileSize - block.capacity()}) {
+			block.clear();
+			while (block.hasRemaining() && src.read(block, at + block.position()) >= 0) {
+			}
+			crc.update(block.flip());
+		}
+		return crc.getValue() << 32 | modified / 1000 & 0xFFFFFFFFL;
+	}
+
+	// the saved state from FLOOR on, if it is for this transfer. the destination must be there
+	// at its full size, as takeRange leaves it
+	public static ByteBuffer load (String dst, long fileSize, int dataSize, FileRange range, long source) {
+		try {
+			if (Files.size(Paths.get(dst)) != fileSize) {
+				return null;
+			}
+			final ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path(dst, range.index)));
+			if (in.limit() < HEADER_SIZE + SackTracker.HEADER_SIZE) {
+				return null;
+			}
+			final CRC32 crc = new CRC32();
+			crc.update(in.array(), CHECKSUM_SIZE, in.limit() - CHECKSUM_SIZE);
+			if (in.getInt(0) != (int)crc.getValue()
+					|| in.getLong(4) != fileSize || in.getInt(12) != dataSize
+					|| (in.get(16) & 0xFF) != range.count || (in.get(17) & 0xFF) != range.index
+					|| in.getLong(18) != source
+					|| in.limit() != HEADER_SIZE + SackTracker.HEADER_SIZE
+							+ (in.get(HEADER_SIZE + 8) & 0xFF) * SackTracker.RANGE_SIZE) {
+				return null;
+			}
+			in.position(HEADER_SIZE);
+			return in;
+		} catch (IOException e) { // none, or no destination
+			return null;
+		}
+	}
+
+	// every checkpoint of the destination, for a transfer that starts it afresh
+	public static void discard (String dst) throws IOException {
+		final Path file = Paths.get(dst).toAbsolutePath();
+		final String prefix = file.getFileName() + SUFFIX;
+		try (DirectoryStream<Path> dir = Files.newDirectoryStream(file.getParent())) {
+			for (Path p : dir) {
+				if (p.getFileName().toString().startsWith(prefix)) {
+					Files.deleteIfExists(p);
+				}
+			}
+		}
+	}
+
+	// ordered writes: every seqN below floor is written. saves if an interval has passed
+	public void written (long floor) {
+		final long now = System.nanoTime();
+		if (now < due) {
+			return;
+		}
+		due = now + INTERVAL * 1000*1000;
+		out.clear().position(HEADER_SIZE);
+		out.putLong(floor).put((byte)0);
+		save();
+	}
+
+	// positional writes land before they are marked, so a snapshot of the tracker is all
+	// written. saves one every interval on a thread of its own
+	public void start (SackTracker tracker) {
+		received = tracker;
+		running = true;
+		thread = Threads.create(this);
+		thread.start();
+	}
+	public void run () {
+		while (true) {
+			LockSupport.parkNanos(INTERVAL * 1000*1000);
+			if (!running) {
+				return;
+			}
+			out.clear().position(HEADER_SIZE);
+			received.encode(out);
+			save();
+		}
+	}
+
+	// the range is complete, the checkpoint goes
+	public void done () throws InterruptedException {
+		if (thread != null) {
+			running = false;
+			LockSupport.unpark(thread);
+			thread.join();
+		}
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			System.out.println("checkpoint not deleted: " + e);
+		}
+	}
+
+	private void save () {
+		out.flip().position(CHECKSUM_SIZE);
+		checksum.reset();
+		checksum.update(out);
+		out.putInt(0, (int)checksum.getValue()).rewind();
+		try {
+			data.force(false); // the data, before the claim to it
+			try (FileChannel fc = FileChannel.open(temp, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				while (out.hasRemaining()) {
+					fc.write(out);
+				}
+			}
+			Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) { // the transfer goes on, a resume would start further back
+			System.out.println("checkpoint not saved: " + e);
+		}
+	}
+
+	private static Path path (String dst, int range) {
+		return Paths.get(dst + SUFFIX + range);
+	}
+}
@@ -0,0 +1,98 @@
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Per packet checksum cost of CRC32 against CRC32C, at the payload sizes the MTU probe can
+ * settle on. A packet is framed into a direct buffer as the sender does, then checked as
+ * the receiver does, so each row is the two checksums a DATA pkt costs end to end:
+ *   seal    sender: DATA framed around a payload, checksum written
+ *   valid   receiver: the same pkt checked, header and payload scattered
+ * The payload is random, so nothing about it helps either algorithm.
+ *
+ *   java ChecksumBenchmark [seconds per row=1]
+ */
+public class ChecksumBenchmark {
+
+	private static final int HEADER_SIZE = 13;
+	// the probe's packet sizes, see FileSender.PROBE_SIZES
+	private static final int[] PACKET_SIZES = {1000, 1472, 4096, 8192, 8972, 16384, 32768, 65507};
+	private static final int WARMUP = 100000;
+	private static final int BATCH = 1000; // pkts between clock reads
+
+	private static long sink; // keeps results live
+
+	public static void main (String[] args) {
+		final double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 1;
+		log(String.format("%8s %8s   %-7s %10s %10s %10s %9s",
+				"packet", "payload", "algo", "seal ns", "valid ns", "pkt ns", "GB/s"));
+		for (int size : PACKET_SIZES) {
+			final int dataSize = size - HEADER_SIZE;
+			final ByteBuffer payload = ByteBuffer.allocate(dataSize);
+			final byte[] random = new byte[dataSize];
+			new Random(size).nextBytes(random);
+			payload.put(random).flip();
+			final ByteBuffer pkt = ByteBuffer.allocateDirect(size);
+			final ByteBuffer[] scattered = {ByteBuffer.allocate(HEADER_SIZE), ByteBuffer.allocateDirect(dataSize)};
+			for (int algo = 0; algo < 2; algo++) {
+				final PacketCodec codec = new PacketCodec();
+				if (algo == 1) {
+					codec.useCrc32c();
+				}
+				// the receiver's copy of the pkt, as a lane reads it
+				payload.rewind();
+				codec.data(pkt, 0, payload);
+				scattered[0].clear();
+				scattered[1].clear();
+				pkt.limit(HEADER_SIZE);
+				scattered[0].put(pkt).flip();
+				pkt.limit(size);
+				scattered[1].put(pkt).flip();
+				pkt.rewind();
+
+				seal(codec, pkt, payload, WARMUP);
+				valid(codec, scattered, WARMUP);
+				final double sealNs = time(seconds / 2, () -> seal(codec, pkt, payload, BATCH));
+				final double validNs = time(seconds / 2, () -> valid(codec, scattered, BATCH));
+				log(String.format("%8d %8d   %-7s %10.1f %10.1f %10.1f %9.2f",
+						size, dataSize, codec.isCrc32c() ? "CRC32C" : "CRC32",
+						sealNs, validNs, sealNs + validNs, 2 * (size - 4) / (sealNs + validNs)));
+			}
+		}
+		if (sink == 42) {
+			log("");
+		}
+	}
+
+	private static void seal (PacketCodec codec, ByteBuffer pkt, ByteBuffer payload, int packets) {
+		for (int i = 0; i < packets; i++) {
+			payload.rewind();
+			codec.data(pkt, i, payload);
+			sink += pkt.getInt(0);
+		}
+	}
+	private static void valid (PacketCodec codec, ByteBuffer[] pkt, int packets) {
+		for (int i = 0; i < packets; i++) {
+			if (codec.valid(pkt)) {
+				sink++;
+			}
+		}
+	}
+
+	// ns per pkt over a run of about the given seconds, BATCH pkts a call
+	private static double time (double seconds, Runnable batch) {
+		final long budget = (long)(seconds * 1e9);
+		final long start = System.nanoTime();
+		long batches = 0;
+		long elapsed;
+		do {
+			batch.run();
+			batches++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < budget);
+		return (double)elapsed / (batches * BATCH);
+	}
+
+	private static void log (Object s) {
+		System.out.println(s);
+	}
+}
@@ -0,0 +1,160 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+
+/**
+ * Proves the packet hot paths allocate nothing once warm. Each path runs as its loop would,
+ * over buffers set up front, and the thread's allocated bytes are read around a timed run:
+ *   data        sender: DATA framed around a payload copy, as from the reading thread
+ *   mapped      sender: mmap reads, as the send loop does them. a ResendTimerTask of a
+ *               rotation of them is moved to the next pkt of a mapped window, its header
+ *               framed, and the pkt sent over loopback to a socket that never reads
+ *   lane        receiver: a scattered DATA checked, its seqN marked
+ *   ack         receiver: an ACK framed from the tracker, then checked by the sender
+ *   simple      the simple pair: DATA framed and checked in a wrapped byte[], then its ACK
+ * Exits 1 if any of them allocated. Needs a JVM with thread allocation accounting (HotSpot).
+ * -Drft.checksum=crc32c runs them on CRC32C, as once it is agreed.
+ *
+ *   java CodecAllocationCheck [packets=1000000] [payload=1459]
+ */
+public class CodecAllocationCheck {
+
+	private static final int WARMUP = 200000; // a run to let the JIT compile a path
+	private static final int WARMUPS = 5; // runs at most, till one allocates nothing
+	private static final int HEADER_SIZE = 13;
+	private static final int ACK_MAX_SIZE = PacketCodec.CTRL_INDEX + 1 + SackTracker.HEADER_SIZE
+			+ SackTracker.MAX_RANGES * SackTracker.RANGE_SIZE + SackTracker.DUPS_SIZE;
+	private static final int SIMPLE_PACKET = 1000;
+	private static final int IN_FLIGHT = 64; // rstts the mapped path rotates through
+	private static final int WINDOW_PKTS = 1024; // pkts in its mapped window
+
+	private static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+	private static final PacketCodec CODEC = new PacketCodec();
+	private static ByteBuffer payload;
+	private static ByteBuffer pkt;
+	private static ByteBuffer mapped;
+	private static ResendTimerTask[] rstts;
+	private static DatagramChannel channel;
+	private static ByteBuffer[] scattered;
+	private static ByteBuffer ack;
+	private static ByteBuffer response;
+	private static SackTracker received;
+	private static ByteBuffer simple;
+	private static long sink; // keeps results live
+
+	public static void main (String[] args) throws IOException {
+		final int packets = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		final int dataSize = args.length > 1 ? Integer.parseInt(args[1]) : 1459;
+		if (!THREADS.isThreadAllocatedMemorySupported()) {
+			log("thread allocation accounting not supported by this JVM");
+			System.exit(2);
+		}
+		THREADS.setThreadAllocatedMemoryEnabled(true);
+		if ("crc32c".equals(System.getProperty("rft.checksum"))) {
+			CODEC.useCrc32c();
+		}
+
+		payload = ByteBuffer.allocate(dataSize);
+		pkt = ByteBuffer.allocateDirect(HEADER_SIZE + dataSize);
+		final File source = File.createTempFile("rft", ".map");
+		source.deleteOnExit();
+		try (RandomAccessFile file = new RandomAccessFile(source, "rw")) {
+			file.setLength((long)WINDOW_PKTS * dataSize);
+			mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		}
+		rstts = new ResendTimerTask[IN_FLIGHT];
+		for (int i = 0; i < IN_FLIGHT; i++) {
+			rstts[i] = new ResendTimerTask(ByteBuffer.allocateDirect(HEADER_SIZE));
+		}
+		final DatagramChannel sink = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		channel = DatagramChannel.open().connect(sink.getLocalAddress());
+		scattered = new ByteBuffer[] {ByteBuffer.allocate(HEADER_SIZE), ByteBuffer.allocateDirect(dataSize)};
+		ack = ByteBuffer.allocateDirect(ACK_MAX_SIZE);
+		response = ByteBuffer.allocate(ACK_MAX_SIZE);
+		received = new SackTracker(16*1024);
+		simple = ByteBuffer.wrap(new byte[SIMPLE_PACKET]);
+
+		log(packets + " pkts of " + dataSize + " bytes per path, after runs of " + WARMUP + " to warm up");
+		boolean clean = true;
+		for (int path = 0; path < 5; path++) {
+			for (int w = 0; w < WARMUPS; w++) {
+				final long warming = allocated();
+				run(path, WARMUP);
+				if (allocated() == warming) {
+					break;
+				}
+			}
+			final long before = allocated();
+			final long t = System.nanoTime();
+			run(path, packets);
+			final long ns = System.nanoTime() - t;
+			final long bytes = allocated() - before;
+			clean &= bytes == 0;
+			log(String.format("%-8s %8.1f ns/pkt %10d bytes allocated", name(path), (double)ns / packets, bytes));
+		}
+		log(clean ? "zero allocation on every path" : "ALLOCATED");
+		System.exit(clean ? 0 : 1);
+	}
+
+	private static void run (int path, int packets) throws IOException {
+		for (int i = 0; i < packets; i++) {
+			switch (path) {
+			case 0:
+				payload.clear();
+				CODEC.data(pkt, i, payload);
+				sink += pkt.limit();
+				break;
+			case 1:
+				final ResendTimerTask rstt = rstts[i % IN_FLIGHT];
+				final int offset = i % WINDOW_PKTS * payload.capacity();
+				rstt.setSeqN(i);
+				CODEC.dataHeader(rstt.getPkt(), i, rstt.setMapped(mapped, offset, offset + payload.capacity()));
+				rstt.writeTo(channel);
+				sink += rstt.getPkt().limit();
+				break;
+			case 2:
+				CODEC.dataHeader(scattered[0], i, scattered[1]);
+				if (CODEC.valid(scattered)) {
+					received.mark(scattered[0].getLong(5));
+				}
+				break;
+			case 3:
+				received.mark(i);
+				CODEC.ack(ack, received);
+				response.clear();
+				response.put(ack).flip();
+				ack.rewind();
+				if (CODEC.valid(response)) {
+					sink += response.getLong(5);
+				}
+				break;
+			case 4:
+				CODEC.begin(simple, PacketCodec.CTRL_DAT).putInt(i).position(SIMPLE_PACKET);
+				CODEC.seal(simple);
+				if (CODEC.valid(simple)) {
+					CODEC.begin(simple, PacketCodec.CTRL_DAT).putInt(simple.getInt(5));
+					sink += CODEC.seal(simple).limit();
+				}
+				break;
+			}
+		}
+	}
+
+	private static long allocated () {
+		return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	private static String name (int path) {
+		return new String[] {"data", "mapped", "lane", "ack", "simple"}[path];
+	}
+	private static void log (Object s) {
+		System.out.println(s);
+	}
+}
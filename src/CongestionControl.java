@@ -0,0 +1,235 @@
+/**
+ * Decides how many packets the sender may have in flight. ACKs are reported from
+ * the ACK thread and losses from the sender loop, so implementations synchronise
+ * their updates and publish the window through a volatile.
+ *
+ * Pick one with -Drft.cc=aimd|cubic, or the name of any class implementing this
+ * interface with a (int initialWindow, int maxWindow) constructor.
+ */
+public interface CongestionControl {
+
+	int INITIAL_WINDOW = 10;
+	int MIN_WINDOW = 2;
+	double PACING_GAIN = 1.25;
+
+	// acked packets newly retired by one ACK. rtt in ns, or -1 if the ACK gave no sample.
+	void onAck (int acked, long rtt, long now);
+
+	// seqN timed out. highestSent bounds the loss episode: later losses below it are the same event.
+	void onLoss (long seqN, long highestSent, long now);
+
+	// a timeout of seqN was spurious: the receiver already held it when the resend came. once
+	// every timeout of an episode has been, the reduction it made is undone (Eifel, RFC 4015).
+	default void onSpuriousLoss (long seqN, long now) {
+	}
+
+	// packets allowed in flight
+	int window ();
+
+	// packets per second to pace at, given the smoothed RTT in ns. <= 0 leaves sending unpaced.
+	// by default one window per RTT with some headroom, so pacing never caps the window.
+	default double pacingRate (long srtt) {
+		return srtt > 0 ? PACING_GAIN * window() * 1e9 / srtt : 0;
+	}
+
+	static CongestionControl create (String name, int maxWindow) {
+		if (name == null || name.equals("aimd")) {
+			return new AimdControl(INITIAL_WINDOW, maxWindow);
+		}
+		if (name.equals("cubic")) {
+			return new CubicControl(INITIAL_WINDOW, maxWindow);
+		}
+		try {
+			return (CongestionControl)Class.forName(name)
+					.getConstructor(int.class, int.class)
+					.newInstance(INITIAL_WINDOW, maxWindow);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("unknown congestion control: " + name, e);
+		}
+	}
+}
+
+// slow start, then additive increase of one packet per window, halved once per loss episode
+class AimdControl implements CongestionControl {
+
+	private final int maxWindow;
+	private double cwnd;
+	private double ssthresh;
+	private long recoveryStart; // the episode's losses are [recoveryStart, recoverySeq)
+	private long recoverySeq; // losses below this belong to the episode already reacted to
+	private int undoMarks; // its timeouts not yet shown spurious
+	private double priorCwnd; // before the episode's reduction, for an undo
+	private double priorSsthresh;
+	private volatile int window;
+
+	public AimdControl (int initialWindow, int maxWindow) {
+		this.maxWindow = maxWindow;
+		cwnd = initialWindow;
+		ssthresh = maxWindow;
+		recoveryStart = -1;
+		recoverySeq = -1;
+		undoMarks = 0;
+		window = initialWindow;
+	}
+
+	public synchronized void onAck (int acked, long rtt, long now) {
+		if (cwnd < ssthresh) {
+			cwnd += acked; // slow start
+		} else {
+			cwnd += (double)acked / cwnd;
+		}
+		publish();
+	}
+
+	public synchronized void onLoss (long seqN, long highestSent, long now) {
+		if (seqN < recoverySeq) {
+			if (seqN >= recoveryStart) {
+				undoMarks++;
+			}
+			return;
+		}
+		recoveryStart = recoverySeq;
+		recoverySeq = highestSent;
+		undoMarks = 1;
+		priorCwnd = cwnd;
+		priorSsthresh = ssthresh;
+		ssthresh = Math.max(cwnd / 2, MIN_WINDOW);
+		cwnd = ssthresh;
+		publish();
+	}
+
+	public synchronized void onSpuriousLoss (long seqN, long now) {
+		if (seqN < recoveryStart || seqN >= recoverySeq || undoMarks == 0 || --undoMarks > 0) {
+			return;
+		}
+		cwnd = Math.max(cwnd, priorCwnd);
+		ssthresh = Math.max(ssthresh, priorSsthresh);
+		recoverySeq = recoveryStart; // the episode is over, the next loss is a new one
+		publish();
+	}
+
+	public int window () {
+		return window;
+	}
+
+	private void publish () {
+		cwnd = Math.min(cwnd, maxWindow);
+		window = (int)cwnd;
+	}
+}
+
+// CUBIC (RFC 8312): window grows as a cubic of the time since the last loss, centred on the
+// window where that loss happened, and never slower than an AIMD flow would.
+class CubicControl implements CongestionControl {
+
+	private static final double C = 0.4;
+	private static final double BETA = 0.7;
+
+	private final int maxWindow;
+	private double cwnd;
+	private double ssthresh;
+	private double wMax;    // window at the last loss
+	private double k;       // seconds to climb back to wMax
+	private double wEst;    // what an AIMD flow would have by now
+	private long epochStart;
+	private long srtt;
+	private long recoveryStart;
+	private long recoverySeq;
+	private int undoMarks;
+	private double priorCwnd; // state before the episode's reduction, for an undo
+	private double priorSsthresh;
+	private double priorWMax;
+	private double priorK;
+	private double priorWEst;
+	private long priorEpochStart;
+	private volatile int window;
+
+	public CubicControl (int initialWindow, int maxWindow) {
+		this.maxWindow = maxWindow;
+		cwnd = initialWindow;
+		ssthresh = maxWindow;
+		epochStart = 0;
+		srtt = 0;
+		recoveryStart = -1;
+		recoverySeq = -1;
+		undoMarks = 0;
+		window = initialWindow;
+	}
+
+	public synchronized void onAck (int acked, long rtt, long now) {
+		if (rtt > 0) {
+			srtt = srtt == 0 ? rtt : srtt + (rtt - srtt) / 8;
+		}
+		if (cwnd < ssthresh) {
+			cwnd += acked; // slow start
+			publish();
+			return;
+		}
+		if (epochStart == 0) { // first increase since the loss
+			epochStart = now;
+			if (wMax < cwnd) {
+				wMax = cwnd;
+			}
+			k = Math.cbrt(wMax * (1 - BETA) / C);
+			wEst = cwnd;
+		}
+		final double t = (now - epochStart + srtt) / 1e9;
+		final double target = C * Math.pow(t - k, 3) + wMax;
+		wEst += 3 * (1 - BETA) / (1 + BETA) * acked / cwnd;
+		if (target > cwnd) {
+			cwnd += (target - cwnd) / cwnd * acked;
+		} else {
+			cwnd += 0.01 * acked / cwnd; // plateau near wMax
+		}
+		if (wEst > cwnd) {
+			cwnd = wEst;
+		}
+		publish();
+	}
+
+	public synchronized void onLoss (long seqN, long highestSent, long now) {
+		if (seqN < recoverySeq) {
+			if (seqN >= recoveryStart) {
+				undoMarks++;
+			}
+			return;
+		}
+		recoveryStart = recoverySeq;
+		recoverySeq = highestSent;
+		undoMarks = 1;
+		priorCwnd = cwnd;
+		priorSsthresh = ssthresh;
+		priorWMax = wMax;
+		priorK = k;
+		priorWEst = wEst;
+		priorEpochStart = epochStart;
+		wMax = cwnd;
+		epochStart = 0;
+		ssthresh = Math.max(cwnd * BETA, MIN_WINDOW);
+		cwnd = ssthresh;
+		publish();
+	}
+
+	public synchronized void onSpuriousLoss (long seqN, long now) {
+		if (seqN < recoveryStart || seqN >= recoverySeq || undoMarks == 0 || --undoMarks > 0) {
+			return;
+		}
+		cwnd = Math.max(cwnd, priorCwnd);
+		ssthresh = Math.max(ssthresh, priorSsthresh);
+		wMax = priorWMax; // back on the curve the loss cut short
+		k = priorK;
+		wEst = priorWEst;
+		epochStart = priorEpochStart;
+		recoverySeq = recoveryStart;
+		publish();
+	}
+
+	public int window () {
+		return window;
+	}
+
+	private void publish () {
+		cwnd = Math.min(cwnd, maxWindow);
+		window = (int)cwnd;
+	}
+}
@@ -0,0 +1,177 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Forward error correction over groups of up to MAX_GROUP consecutive packets. Each group
+ * gets M parity packets, and any M of its packets lost can be rebuilt by the receiver from
+ * the rest without waiting out a retransmission. Parity is over the raw blocks of the file,
+ * each zero padded to the payload size, so it holds whatever form a payload travelled in.
+ * With one parity it is the XOR of the group, a long at a time. With more it is a
+ * systematic Reed-Solomon code over GF(256) built on a Cauchy matrix, so any square
+ * submatrix of it is invertible.
+ *
+ * The sender keeps one instance per range to size its groups: they grow while parity
+ * leaves nothing to retransmit, and halve when losses get past it.
+ */
+public class Fec {
+
+	public static final int MIN_GROUP = 4;
+	public static final int MAX_GROUP = 64;
+	public static final int MAX_PARITY = 16;
+
+	// adaptation: data pkts between adjustments, and the share of them resent that is tolerated
+	private static final int EPOCH = 1024;
+	private static final double TARGET = 0.002;
+
+	private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	private static final byte[] EXP = new byte[510];
+	private static final int[] LOG = new int[256];
+	private static final byte[][] MUL = new byte[256][256]; // product tables, a row per factor
+
+	static {
+		int x = 1;
+		for (int i = 0; i < 255; i++) { // generator 2, polynomial x^8 + x^4 + x^3 + x^2 + 1
+			EXP[i] = EXP[i + 255] = (byte)x;
+			LOG[x] = i;
+			x <<= 1;
+			if (x > 0xFF) {
+				x ^= 0x11D;
+			}
+		}
+		for (int a = 1; a < 256; a++) {
+			for (int b = 1; b < 256; b++) {
+				MUL[a][b] = EXP[LOG[a] + LOG[b]];
+			}
+		}
+	}
+
+	private final int parities;
+	private final boolean fixed;
+	private volatile int group; // read by the reading thread as it starts a group
+	private int sent;
+	private int lost;
+
+	// group 0 adapts, starting from the middle
+	public Fec (int parities, int group) {
+		if (parities < 1 || parities > MAX_PARITY) {
+			throw new IllegalArgumentException("parity pkts per group out of range: " + parities);
+		}
+		if (group != 0 && (group < 1 || group > MAX_GROUP)) {
+			throw new IllegalArgumentException("group size out of range: " + group);
+		}
+		this.parities = parities;
+		fixed = group != 0;
+		this.group = fixed ? group : (MIN_GROUP + MAX_GROUP) / 2;
+	}
+
+	public int parities () {
+		return parities;
+	}
+	public int group () {
+		return group;
+	}
+
+	// sender loop only: a new data pkt went out, or a timeout resent one
+	public void onSent () {
+		if (++sent < EPOCH) {
+			return;
+		}
+		if (!fixed) {
+			if ((double)lost / sent > TARGET) {
+				group = Math.max(MIN_GROUP, group / 2);
+			} else if (lost == 0) {
+				group = Math.min(MAX_GROUP, group + Math.max(1, group / 4));
+			}
+		}
+		sent = 0;
+		lost = 0;
+	}
+	public void onLoss () {
+		lost++;
+	}
+
+	// adds data packet col of a group into parity row: its XOR with one parity, else its
+	// product with the row's Cauchy coefficient
+	public static void encode (int parities, int row, int col, byte[] parity, int pOff, byte[] data, int dOff, int len) {
+		if (parities == 1) {
+			xor(parity, pOff, data, dOff, len);
+			return;
+		}
+		final byte[] mul = MUL[coefficient(row, col)];
+		for (int i = 0; i < len; i++) {
+			parity[pOff + i] ^= mul[data[dOff + i] & 0xFF];
+		}
+	}
+
+	// rebuilds the e packets at cols from the parity rows, once every other packet of the
+	// group has been encoded out of them (leaving what the missing ones contribute)
+	public static void solve (int parities, int[] rows, int[] cols, int e, byte[][] syndromes, byte[][] out, int len) {
+		if (parities == 1) {
+			System.arraycopy(syndromes[rows[0]], 0, out[0], 0, len);
+			return;
+		}
+		// invert the e x e Cauchy submatrix by Gauss-Jordan, beside an identity
+		final int[][] a = new int[e][2 * e];
+		for (int r = 0; r < e; r++) {
+			for (int t = 0; t < e; t++) {
+				a[r][t] = coefficient(rows[r], cols[t]);
+			}
+			a[r][e + r] = 1;
+		}
+		for (int c = 0; c < e; c++) {
+			int p = c;
+			while (a[p][c] == 0) {
+				p++;
+			}
+			final int[] swap = a[p];
+			a[p] = a[c];
+			a[c] = swap;
+			final int scale = inverse(a[c][c]);
+			for (int j = 0; j < 2 * e; j++) {
+				a[c][j] = mul(a[c][j], scale);
+			}
+			for (int r = 0; r < e; r++) {
+				if (r != c && a[r][c] != 0) {
+					final int f = a[r][c];
+					for (int j = 0; j < 2 * e; j++) {
+						a[r][j] ^= mul(f, a[c][j]);
+					}
+				}
+			}
+		}
+		for (int t = 0; t < e; t++) {
+			Arrays.fill(out[t], 0, len, (byte)0);
+			for (int r = 0; r < e; r++) {
+				final byte[] mul = MUL[a[t][e + r]];
+				final byte[] s = syndromes[rows[r]];
+				for (int i = 0; i < len; i++) {
+					out[t][i] ^= mul[s[i] & 0xFF];
+				}
+			}
+		}
+	}
+
+	// dst ^= src, a long at a time
+	public static void xor (byte[] dst, int dOff, byte[] src, int sOff, int len) {
+		int i = 0;
+		for (; i + 8 <= len; i += 8) {
+			LONGS.set(dst, dOff + i, (long)LONGS.get(dst, dOff + i) ^ (long)LONGS.get(src, sOff + i));
+		}
+		for (; i < len; i++) {
+			dst[dOff + i] ^= src[sOff + i];
+		}
+	}
+
+	// 1 / (x + y), with parity rows at x = MAX_GROUP.. and data columns at y = 0..MAX_GROUP-1
+	private static int coefficient (int row, int col) {
+		return inverse((MAX_GROUP + row) ^ col);
+	}
+	private static int mul (int a, int b) {
+		return MUL[a][b] & 0xFF;
+	}
+	private static int inverse (int a) {
+		return EXP[255 - LOG[a]] & 0xFF;
+	}
+}
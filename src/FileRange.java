@@ -0,0 +1,43 @@
+/**
+ * One of the contiguous byte ranges a file is split into for a parallel transfer, each
+ * range sent as its own session with its own socket and sequence space. Ranges are cut
+ * on packet boundaries, so only the last one can end in a short packet. Both ends derive
+ * them from the file size, payload size and range count carried in the SYN.
+ */
+public class FileRange {
+
+	public static final int MAX_RANGES = 255; // range count and index travel as one byte
+
+	public final int index;
+	public final int count;
+	public final long offset; // first byte of the range in the file
+	public final long length;
+
+	public FileRange (long fileSize, int dataSize, int count, int index) {
+		if (count < 1 || count > MAX_RANGES || index < 0 || index >= count) {
+			throw new IllegalArgumentException("range " + index + " of " + count);
+		}
+		final long pkts = packets(fileSize, dataSize);
+		this.index = index;
+		this.count = count;
+		offset = Math.min(fileSize, pkts * index / count * dataSize);
+		length = Math.min(fileSize, pkts * (index + 1) / count * dataSize) - offset;
+	}
+
+	public long packets (int dataSize) {
+		return packets(length, dataSize);
+	}
+	// bytes of the file in packet seqN: a whole payload, but for a short last one
+	public int blockSize (long seqN, int dataSize) {
+		return (int)Math.min(dataSize, length - seqN * dataSize);
+	}
+
+	// no more ranges than packets, so none is empty. always at least one
+	public static int cap (long fileSize, int dataSize, int count) {
+		return (int)Math.max(1, Math.min(count, packets(fileSize, dataSize)));
+	}
+
+	private static long packets (long bytes, int dataSize) {
+		return (bytes + dataSize - 1) / dataSize;
+	}
+}
@@ -3,7 +3,6 @@ import java.net.*;
 import java.util.*;
 import java.nio.charset.*;
 import java.nio.ByteBuffer;
-import java.util.zip.*;
 
 public class FileReceiver {
 
@@ -14,7 +13,7 @@ public class FileReceiver {
 
 	private final BufferedOutputStream TO_FILE;
 	private final DatagramSocket SOCKET;
-	private final Checksum CHKSUM;
+	private final PacketCodec CODEC;
 
 	private static final int INDEX_CTRL = 4;
 	private static final int INDEX_HDR_DATA = 5;
@@ -33,9 +32,9 @@ public class FileReceiver {
 	private static final int SK_TIMEOUT = 8; 
 	private final DatagramPacket SACK;
 	private final DatagramPacket FIN;
-	private final int TOTAL_PKTS;
+	private final long TOTAL_PKTS;
 
-	private int pkts_received;
+	private long pkts_received; // seqNs on the wire are its low 32 bits
 
 	public static void main (String[] args) throws Exception {
 		if (args.length != 1) {
@@ -49,22 +48,18 @@ public class FileReceiver {
 	public FileReceiver (String[] args) throws Exception {
 
 		SOCKET = new DatagramSocket(Integer.parseInt(args[0]));
-		CHKSUM = new CRC32();
+		CODEC = new PacketCodec();
 		pkts_received = 0;
 
 		// create SACK packet
 		final byte[] sackdat = new byte[PSIZE_SACK];
-		CHKSUM.reset();
-		CHKSUM.update((int) CTRL_SYN);
-		ByteBuffer.wrap(sackdat).putInt((int)CHKSUM.getValue()).put(CTRL_SYN);
+		CODEC.seal(CODEC.begin(ByteBuffer.wrap(sackdat), CTRL_SYN));
 		SACK = new DatagramPacket(sackdat, PSIZE_SACK);
 		// SACK created
 
 		// create FIN packet
 		final byte[] findat = new byte[PSIZE_FIN];
-		CHKSUM.reset();
-		CHKSUM.update((int) CTRL_FIN);
-		ByteBuffer.wrap(findat).putInt((int)CHKSUM.getValue()).put(CTRL_FIN);
+		CODEC.fin(ByteBuffer.wrap(findat));
 		FIN = new DatagramPacket(findat, PSIZE_FIN);
 		// FIN packet created.
 
@@ -72,15 +67,15 @@ public class FileReceiver {
 
 		final byte[] syndat = new byte[PSIZE_MAX];
 		final DatagramPacket SYN = new DatagramPacket(syndat, PSIZE_MAX);
+		final ByteBuffer synbuf = ByteBuffer.wrap(syndat);
 		while (true) {
 
 			SOCKET.receive(SYN);
-			if (!isCorrupted(SYN)) {
+			if (!isCorrupted(SYN, synbuf)) {
 				// parse SYN
 				SND_ADDR = SYN.getSocketAddress();
-				final ByteBuffer synbuf = ByteBuffer.wrap(SYN.getData());
 				synbuf.position(INDEX_HDR_DATA);
-				TOTAL_PKTS = synbuf.getInt();
+				TOTAL_PKTS = synbuf.getLong();
 				final byte[] pathBytes = new byte[SYN.getLength()-synbuf.position()];
 				synbuf.get(pathBytes);
 				DST_FILE_PATH = new String(pathBytes, CHARSET_NET);
@@ -104,22 +99,24 @@ public class FileReceiver {
 
 		final byte[] rcvdat = new byte[PSIZE_MAX+1];
 		final DatagramPacket RCVPKT = new DatagramPacket(rcvdat, rcvdat.length);
+		final ByteBuffer rcvbuf = ByteBuffer.wrap(rcvdat);
 		final byte[] ackdat = new byte[PSIZE_ACK];
 		final DatagramPacket ACK = new DatagramPacket(ackdat, PSIZE_ACK);
+		final ByteBuffer ackbuf = ByteBuffer.wrap(ackdat);
 
 		int rcvSeqNum;
 		while (pkts_received < TOTAL_PKTS) {
 
 			SOCKET.receive(RCVPKT);
 
-			if (isCorrupted(RCVPKT)) {
+			if (isCorrupted(RCVPKT, rcvbuf)) {
 				continue;
 			}
 
 			if (isDAT(RCVPKT)) {
-				rcvSeqNum = getSeqNumDAT(RCVPKT);
-				SOCKET.send(prepareACK(rcvSeqNum, ACK)); // hurry up and return the ACK
-				if (rcvSeqNum != pkts_received) { // not the pkt we are waiting for
+				rcvSeqNum = getSeqNumDAT(rcvbuf);
+				SOCKET.send(prepareACK(rcvSeqNum, ACK, ackbuf)); // hurry up and return the ACK
+				if (rcvSeqNum != (int)pkts_received) { // not the pkt we are waiting for
 					continue; 
 				}
 				writeDataFromPkt(RCVPKT);
@@ -146,21 +143,23 @@ public class FileReceiver {
 
 		final byte[] rcvdat = new byte[PSIZE_MAX+1];
 		final DatagramPacket RCVPKT = new DatagramPacket(rcvdat, rcvdat.length);
+		final ByteBuffer rcvbuf = ByteBuffer.wrap(rcvdat);
 		final byte[] ackdat = new byte[PSIZE_ACK];
 		final DatagramPacket ACK = new DatagramPacket(ackdat, PSIZE_ACK);
+		final ByteBuffer ackbuf = ByteBuffer.wrap(ackdat);
 
 		while (true) {
 			try {
 				SOCKET.send(FIN);
 				SOCKET.receive(RCVPKT);
-				if (isCorrupted(RCVPKT)) {
+				if (isCorrupted(RCVPKT, rcvbuf)) {
 					continue;
 				}
 				if (isFIN(RCVPKT)) {
 					break;
 				}
 				if (isDAT(RCVPKT)) { // immediately ACK remaining out of order pkts
-					SOCKET.send(prepareACK(getSeqNumDAT(RCVPKT), RCVPKT));
+					SOCKET.send(prepareACK(getSeqNumDAT(rcvbuf), ACK, ackbuf));
 					continue;
 				}
 			} catch (SocketTimeoutException ste) {
@@ -171,19 +170,18 @@ public class FileReceiver {
 		return this;
 	}
 
-	private DatagramPacket prepareACK (int sN, DatagramPacket pkt) {
-		final ByteBuffer ackbuf = ByteBuffer.wrap(pkt.getData()).put(INDEX_CTRL, CTRL_DAT).putInt(INDEX_HDR_DATA, sN);
-		CHKSUM.reset();
-		CHKSUM.update(pkt.getData(), INDEX_CTRL, PSIZE_ACK - INDEX_CTRL);
-		ackbuf.putInt(0, (int)CHKSUM.getValue());
+	// ackbuf wraps pkt's data, so framing it allocates nothing
+	private DatagramPacket prepareACK (int sN, DatagramPacket pkt, ByteBuffer ackbuf) {
+		CODEC.begin(ackbuf, CTRL_DAT).putInt(sN);
+		CODEC.seal(ackbuf);
 		return pkt;
 	}
 
 	private void writeDataFromPkt (DatagramPacket pkt) throws IOException {
 		TO_FILE.write(pkt.getData(), INDEX_BODY, pkt.getLength() - INDEX_BODY);
 	}
-	private int getSeqNumDAT (DatagramPacket pkt) {
-		return ByteBuffer.wrap(pkt.getData()).getInt(INDEX_HDR_DATA);
+	private int getSeqNumDAT (ByteBuffer pkt) {
+		return pkt.getInt(INDEX_HDR_DATA);
 	}
 	private boolean isDAT (DatagramPacket pkt) {
 		return pkt.getData()[INDEX_CTRL] == CTRL_DAT;
@@ -194,16 +192,14 @@ public class FileReceiver {
 	private boolean isFIN (DatagramPacket pkt) {
 		return pkt.getData()[INDEX_CTRL] == CTRL_FIN;
 	}
-	private boolean isCorrupted (DatagramPacket pkt) {
+	// view wraps pkt's data
+	private boolean isCorrupted (DatagramPacket pkt, ByteBuffer view) {
 		final int len = pkt.getLength();
 		if (len > PSIZE_MAX || (len != PSIZE_FIN && len < INDEX_BODY)) {
 			return true;
 		}
-		final ByteBuffer data = ByteBuffer.wrap(pkt.getData());
-		final int expected = data.getInt();
-		CHKSUM.reset();
-		CHKSUM.update(pkt.getData(), INDEX_CTRL, len - INDEX_CTRL);
-		return expected != ((int)CHKSUM.getValue());
+		view.clear().limit(len);
+		return !CODEC.valid(view);
 	}
 	private String baToString (byte[] arr, int off, int stop) {
 		final StringBuilder sb = new StringBuilder();
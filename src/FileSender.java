@@ -3,7 +3,6 @@ import java.net.*;
 import java.util.*;
 import java.nio.charset.*;
 import java.nio.ByteBuffer;
-import java.util.zip.*;
 
 public class FileSender {
 
@@ -15,11 +14,12 @@ public class FileSender {
 
 	private final BufferedInputStream FROM_FILE;
 	private final DatagramSocket SOCKET;
-	private final Checksum CHKSUM;
+	private final PacketCodec CODEC;
 
 	private static final int INDEX_CTRL = 4;
 	private static final int INDEX_HDR_DATA = 5;
 	private static final int INDEX_BODY = 9;
+	private static final int PSIZE_SYN_HDR = 13; // CRC, CTRL, 8B TOTAL_PKTS
 	private static final byte CTRL_SYN = 1;
 	private static final byte CTRL_DAT = 0;
 	private static final byte CTRL_FIN = -1;
@@ -31,12 +31,13 @@ public class FileSender {
 	private static final int MAX_BODY_SIZE = PSIZE_MAX - INDEX_BODY;
 	private static final int FILE_BUF_SIZE = 8*1024*MAX_BODY_SIZE;
 
-	private static final int SK_TIMEOUT = 8;
-	private final int TOTAL_PKTS;
+	private static final int SK_TIMEOUT = 8; // ms, initial RTO until RTT is measured
+	private final RttEstimator RTT;
+	private final long TOTAL_PKTS;
 	private final DatagramPacket SYN;
 	private final DatagramPacket FIN;
 
-	private int pkts_sent;
+	private long pkts_sent; // on the wire as its low 32 bits: only one pkt is ever outstanding
 
 	public static void main (String[] args) throws Exception {
 		if (args.length != 4) {
@@ -60,12 +61,10 @@ public class FileSender {
 		// get number of packets
 		final long size = fis.getChannel().size();
 		log("File Size: " + size/1024 + "KB");
-		int numpkts = (int) (size / ((long)MAX_BODY_SIZE));
-		if (numpkts < 0) {throw new Exception("file too big!");}
-		if (size % ((long)MAX_BODY_SIZE) != 0) {
+		long numpkts = size / MAX_BODY_SIZE;
+		if (size % MAX_BODY_SIZE != 0) {
 			numpkts++;
 		}
-		if (numpkts < 0) {throw new Exception("file too big!");}
 		TOTAL_PKTS = numpkts;
 
 		// Initialise net IO
@@ -75,26 +74,22 @@ public class FileSender {
 		SOCKET.setSoTimeout(SK_TIMEOUT);
 
 		// Other misc init
-		CHKSUM = new CRC32();
+		CODEC = new PacketCodec();
+		RTT = new RttEstimator(SK_TIMEOUT * 1000000L);
 		pkts_sent = 0;
 
 		// create unique SYN packet
 		byte[] destPath = DST_FILE_PATH.getBytes(CHARSET_NET);
-		final byte[] syndat = new byte[destPath.length + INDEX_BODY];
+		final byte[] syndat = new byte[destPath.length + PSIZE_SYN_HDR];
 		final ByteBuffer synBB = ByteBuffer.wrap(syndat);
-		synBB.position(INDEX_CTRL);
-		synBB.put(CTRL_SYN).putInt(TOTAL_PKTS).put(destPath);
-		CHKSUM.reset();
-		CHKSUM.update(syndat, INDEX_CTRL, syndat.length-INDEX_CTRL);
-		synBB.putInt(0, (int)CHKSUM.getValue());
+		CODEC.begin(synBB, CTRL_SYN).putLong(TOTAL_PKTS).put(destPath);
+		CODEC.seal(synBB);
 		SYN = new DatagramPacket(syndat, syndat.length);
 		// SYN packet created.
 
 		// create FIN packet
 		final byte[] findat = new byte[PSIZE_FIN];
-		CHKSUM.reset();
-		CHKSUM.update((int) CTRL_FIN);
-		ByteBuffer.wrap(findat).putInt((int)CHKSUM.getValue()).put(CTRL_FIN);
+		CODEC.fin(ByteBuffer.wrap(findat));
 		FIN = new DatagramPacket(findat, PSIZE_FIN);
 		// FIN packet created.
 
@@ -106,13 +101,14 @@ public class FileSender {
 		// prepare for handshaking
 		final byte[] sackdat = new byte[PSIZE_SACK];
 		final DatagramPacket SACK = new DatagramPacket(sackdat, PSIZE_SACK);
+		final ByteBuffer sackbuf = ByteBuffer.wrap(sackdat);
 		//log("Sending SYN...");
 		while (true) {
 			SOCKET.send(SYN);
 			SOCKET.send(SYN); // send twice
 			try {
 				SOCKET.receive(SACK);
-				if (!isCorrupted(SACK)) {
+				if (!isCorrupted(SACK, sackbuf)) {
 					//log("SACK success!");
 					break; // uncorrupted success SACK received. sync complete.
 				}
@@ -129,13 +125,20 @@ public class FileSender {
 
 		final byte[] filedat = new byte[PSIZE_MAX];
 		final DatagramPacket SNDPKT = new DatagramPacket(filedat, filedat.length);
+		final ByteBuffer sndbuf = ByteBuffer.wrap(filedat);
 		final byte[] rcvdat = new byte[PSIZE_ACK+1];
 		final DatagramPacket RCVPKT = new DatagramPacket(rcvdat, rcvdat.length);
+		final ByteBuffer rcvbuf = ByteBuffer.wrap(rcvdat);
 
+		long sentAt;
+		boolean resent;
 		while (pkts_sent < TOTAL_PKTS) {
 
-			readDataIntoPkt(SNDPKT);
+			readDataIntoPkt(SNDPKT, sndbuf);
+			SOCKET.setSoTimeout(RTT.rtoMillis());
 			SOCKET.send(SNDPKT);
+			sentAt = System.nanoTime();
+			resent = false;
 
 			// This loop ensures the packet is received by the rcver
 			while (true) {
@@ -143,15 +146,19 @@ public class FileSender {
 
 					SOCKET.receive(RCVPKT);
 
-					if (isCorrupted(RCVPKT)) { // resend and re-wait
+					if (isCorrupted(RCVPKT, rcvbuf)) { // resend and re-wait
 						SOCKET.send(SNDPKT);
+						resent = true;
 						continue;
 					}
 
 					if (isACK(RCVPKT)) {
-						if (getSeqNumACK(RCVPKT) != pkts_sent) { // ack not for this packet
+						if (getSeqNumACK(rcvbuf) != (int)pkts_sent) { // ack not for this packet
 							continue; // try to receive another packet
 						}
+						if (!resent) { // Karn: a resent packet's ACK is ambiguous
+							RTT.sample(System.nanoTime() - sentAt);
+						}
 						break; // PKT ACKNOWLEDGED!!!!!!!!
 					}
 					if (isFIN(RCVPKT)) { // end sndLoop (out of order fin packet)
@@ -166,8 +173,13 @@ public class FileSender {
 					assert(false);
 					throw new Exception("WHAT JOKE PACKET??");
 
-				} catch (SocketTimeoutException ste) { // resend and re-wait
+				} catch (SocketTimeoutException ste) { // resend and re-wait, backing off if lost again
+					if (resent) {
+						RTT.backoff(System.nanoTime());
+						SOCKET.setSoTimeout(RTT.rtoMillis());
+					}
 					SOCKET.send(SNDPKT);
+					resent = true;
 				}
 			}
 			// CURRENT PKT ACKNOWLEDGED, INCRM
@@ -179,7 +191,7 @@ public class FileSender {
 		SOCKET.setSoTimeout(0);
 		while (true) { // wait till FIN comes
 			SOCKET.receive(RCVPKT);
-			if (isCorrupted(RCVPKT)) {
+			if (isCorrupted(RCVPKT, rcvbuf)) {
 				continue;
 			}
 			if (isFIN(RCVPKT)) {
@@ -196,23 +208,19 @@ public class FileSender {
 		return this;
 	}
 
-	private DatagramPacket readDataIntoPkt (DatagramPacket pkt) throws IOException {
-		final ByteBuffer datbuf = ByteBuffer.wrap(pkt.getData());
-
-		datbuf.put(INDEX_CTRL, CTRL_DAT).putInt(INDEX_HDR_DATA, pkts_sent);
+	// datbuf wraps pkt's data, so framing it allocates nothing
+	private DatagramPacket readDataIntoPkt (DatagramPacket pkt, ByteBuffer datbuf) throws IOException {
+		CODEC.begin(datbuf, CTRL_DAT).putInt((int)pkts_sent);
 		final int bread = FROM_FILE.read(pkt.getData(), INDEX_BODY, MAX_BODY_SIZE);
-		pkt.setLength(INDEX_BODY + bread);
-
-		CHKSUM.reset();
-		CHKSUM.update(pkt.getData(), INDEX_CTRL, pkt.getLength() - INDEX_CTRL);
-		datbuf.putInt(0, (int)CHKSUM.getValue());
+		datbuf.position(INDEX_BODY + bread);
+		pkt.setLength(CODEC.seal(datbuf).limit());
 
 		//pkts_sent++;
 		return pkt;
 	}
 
-	private int getSeqNumACK (DatagramPacket pkt) {
-		return ByteBuffer.wrap(pkt.getData()).getInt(INDEX_HDR_DATA);
+	private int getSeqNumACK (ByteBuffer pkt) {
+		return pkt.getInt(INDEX_HDR_DATA);
 	}
 	private boolean isACK (DatagramPacket pkt) {
 		return pkt.getData()[INDEX_CTRL] == CTRL_DAT;
@@ -223,16 +231,14 @@ public class FileSender {
 	private boolean isFIN (DatagramPacket pkt) {
 		return pkt.getData()[INDEX_CTRL] == CTRL_FIN;
 	}
-	private boolean isCorrupted (DatagramPacket pkt) {
+	// view wraps pkt's data
+	private boolean isCorrupted (DatagramPacket pkt, ByteBuffer view) {
 		final int len = pkt.getLength();
 		if (len != PSIZE_ACK && len != PSIZE_FIN && len != PSIZE_SACK) {
 			return true;
 		}
-		final ByteBuffer data = ByteBuffer.wrap(pkt.getData());
-		final int expected = data.getInt();
-		CHKSUM.reset();
-		CHKSUM.update(pkt.getData(), INDEX_CTRL, len - INDEX_CTRL);
-		return expected != ((int)CHKSUM.getValue());
+		view.clear().limit(len);
+		return !CODEC.valid(view);
 	}
 	private String baToString (byte[] arr, int off, int stop) {
 		final StringBuilder sb = new StringBuilder();
@@ -0,0 +1,90 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Throughput of one transfer against the receiver's lane count (rft.lanes). For each count
+ * the receiver is a child JVM and the sender runs in this one, timed from start to FIN, a
+ * few times over. Any rft.* property given to this JVM goes to both ends, e.g.
+ * -Drft.write=positional or -Drft.mtu.max=65507. Lanes only verify checksums in parallel,
+ * so run it on the receiving host: any gain is bounded by the cores free beside the sender.
+ *
+ *   java LaneBenchmark [bytes=100000000] [runs=3] [lanes=1,2,4,8] [port=9400]
+ */
+public class LaneBenchmark {
+
+	private static final PrintStream OUT = System.out;
+
+	public static void main (String[] args) throws Exception {
+		final int bytes = args.length > 0 ? Integer.parseInt(args[0]) : 100000000;
+		final int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		final String[] counts = (args.length > 2 ? args[2] : "1,2,4,8").split(",");
+		int port = args.length > 3 ? Integer.parseInt(args[3]) : 9400;
+
+		final Path dir = Files.createTempDirectory("rft-lanes");
+		final byte[] data = new byte[bytes];
+		new Random(1).nextBytes(data);
+		final Path src = Files.write(dir.resolve("src"), data);
+		final Path dst = dir.resolve("dst");
+		final List<String> options = new ArrayList<String>();
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith("rft.")) {
+				options.add("-D" + name + "=" + System.getProperty(name));
+			}
+		}
+
+		log(bytes + " bytes, median of " + runs + " runs, " + Runtime.getRuntime().availableProcessors()
+				+ " processors" + (options.isEmpty() ? "" : ", " + String.join(" ", options)));
+		log(String.format("%6s %9s %9s %9s %9s %8s %6s", "lanes", "min ms", "p50 ms", "max ms", "MB/s", "ratio", "ok"));
+		double base = 0;
+		for (String count : counts) {
+			final long[] ms = new long[runs];
+			int ok = 0;
+			for (int r = 0; r < runs; r++) {
+				ms[r] = run(Integer.parseInt(count.trim()), options, src, dst, port++);
+				if (Files.exists(dst) && Files.mismatch(src, dst) == -1) {
+					ok++;
+				}
+				Files.deleteIfExists(dst);
+			}
+			Arrays.sort(ms);
+			final double rate = bytes / 1e3 / ms[runs / 2];
+			if (base == 0) {
+				base = rate;
+			}
+			log(String.format("%6s %9d %9d %9d %9.1f %7.2fx %3d/%d",
+					count.trim(), ms[0], ms[runs / 2], ms[runs - 1], rate, rate / base, ok, runs));
+		}
+		Files.deleteIfExists(src);
+		Files.deleteIfExists(dir);
+	}
+
+	// one transfer to a fresh receiver with this many lanes. returns its ms, start to FIN
+	private static long run (int lanes, List<String> options, Path src, Path dst, int port) throws Exception {
+		final List<String> command = new ArrayList<String>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		command.addAll(options);
+		command.addAll(Arrays.asList("-Drft.lanes=" + lanes,
+				"-cp", System.getProperty("java.class.path"), "FileReceiver", "" + port));
+		final Process receiver = new ProcessBuilder(command)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+				.redirectErrorStream(true)
+				.start();
+		Thread.sleep(1000); // let it bind
+
+		System.setOut(new PrintStream(OutputStream.nullOutputStream())); // the sender logs per packet
+		final long t = System.nanoTime();
+		try {
+			FileSender.main(new String[] {"localhost", "" + port, src.toString(), dst.toString()});
+		} finally {
+			System.setOut(OUT);
+		}
+		final long ms = (System.nanoTime() - t) / 1000000;
+		receiver.waitFor(); // last writes and FINs
+		return ms;
+	}
+
+	private static void log (Object s) {
+		OUT.println(s);
+	}
+}
@@ -0,0 +1,90 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Table of contents of a directory sent as one stream: the manifest, then the bytes of
+ * every file back to back in manifest order. One handshake and one FIN cover the lot,
+ * and small files share datagrams since payloads are cut from the stream, not per file.
+ *   4B LENGTH (of what follows), 4B COUNT, COUNT * (8B SIZE, 2B PATHLEN, PATH)
+ * Paths are relative to the directory, '/' separated, UTF-8.
+ */
+public class Manifest {
+
+	public static final int LENGTH_SIZE = 4;
+
+	public final String[] paths;
+	public final long[] sizes;
+	public final Path[] files; // where to read them, on the sending side only
+
+	public Manifest (String[] paths, long[] sizes, Path[] files) {
+		this.paths = paths;
+		this.sizes = sizes;
+		this.files = files;
+	}
+
+	// every regular file under dir, in path order
+	public static Manifest of (Path dir) throws IOException {
+		final List<Path> files = new ArrayList<Path>();
+		try (Stream<Path> walk = Files.walk(dir)) {
+			walk.filter(Files::isRegularFile).sorted().forEach(files::add);
+		}
+		final String[] paths = new String[files.size()];
+		final long[] sizes = new long[files.size()];
+		for (int i = 0; i < paths.length; i++) {
+			paths[i] = dir.relativize(files.get(i)).toString().replace(dir.getFileSystem().getSeparator(), "/");
+			sizes[i] = Files.size(files.get(i));
+		}
+		return new Manifest(paths, sizes, files.toArray(new Path[0]));
+	}
+
+	public int count () {
+		return paths.length;
+	}
+
+	// file bytes after the manifest
+	public long dataSize () {
+		long total = 0;
+		for (long size : sizes) {
+			total += size;
+		}
+		return total;
+	}
+
+	// LENGTH included, ready to read
+	public ByteBuffer encode () {
+		final byte[][] encoded = new byte[paths.length][];
+		int length = 4;
+		for (int i = 0; i < paths.length; i++) {
+			encoded[i] = paths[i].getBytes(StandardCharsets.UTF_8);
+			if (encoded[i].length > 0xFFFF) {
+				throw new IllegalArgumentException("path too long: " + paths[i]);
+			}
+			length += 8 + 2 + encoded[i].length;
+		}
+		final ByteBuffer out = ByteBuffer.allocate(LENGTH_SIZE + length);
+		out.putInt(length).putInt(paths.length);
+		for (int i = 0; i < paths.length; i++) {
+			out.putLong(sizes[i]).putShort((short)encoded[i].length).put(encoded[i]);
+		}
+		out.flip();
+		return out;
+	}
+
+	// from what follows LENGTH
+	public static Manifest decode (ByteBuffer in) {
+		final int count = in.getInt();
+		final String[] paths = new String[count];
+		final long[] sizes = new long[count];
+		for (int i = 0; i < count; i++) {
+			sizes[i] = in.getLong();
+			final byte[] path = new byte[in.getShort() & 0xFFFF];
+			in.get(path);
+			paths[i] = new String(path, StandardCharsets.UTF_8);
+		}
+		return new Manifest(paths, sizes, null);
+	}
+}
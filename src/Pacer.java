@@ -0,0 +1,108 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket that spaces datagrams at a target rate in packets per second.
+ * Waits park while the gap is long and spin on nanoTime for the last stretch,
+ * since parking alone overshoots by tens of microseconds.
+ * The rate may be changed from any thread; await is for the sending thread only.
+ */
+public class Pacer {
+
+	private static final long SPIN_NANOS = 50*1000; // finish waits shorter than this by spinning
+
+	private final double burst;
+	private volatile double rate; // packets per second, <= 0 means unpaced
+	private double tokens;
+	private long last;
+
+	// stats. accuracy is measured only between two packets in a row that both waited for a
+	// token: the bucket is empty after each, so the gap between them should be 1/rate. any
+	// other gap includes time the sender was idle or held by its window
+	private long paced;
+	private long waited;
+	private long lateNanos; // past the time each wait was for
+	private boolean lastWaited;
+	private long lastSent;
+	private long intervals;
+	private long intervalNanos;
+	private double intervalRates;
+
+	public Pacer (double rate, double burst) {
+		this.rate = rate;
+		this.burst = Math.max(1, burst);
+		tokens = this.burst;
+		last = System.nanoTime();
+		paced = 0;
+		waited = 0;
+	}
+
+	public void setRate (double rate) {
+		this.rate = rate;
+	}
+	public double getRate () {
+		return rate;
+	}
+
+	// blocks until a token is available, then takes it. returns the time after waiting.
+	public long await (long now) {
+		final double r = rate;
+		if (r > 0) {
+			tokens = Math.min(burst, tokens + (now - last) * r / 1e9);
+			last = now;
+			if (tokens < 1) {
+				final long until = now + (long)((1 - tokens) * 1e9 / r);
+				now = waitUntil(until);
+				tokens = 1;
+				last = until; // credit any oversleep to the next packet
+				lateNanos += now - until;
+				waited++;
+				if (lastWaited) {
+					intervals++;
+					intervalNanos += now - lastSent;
+					intervalRates += r;
+				}
+				tokens -= 1;
+				lastWaited = true;
+				lastSent = now;
+				paced++;
+				return now;
+			}
+			tokens -= 1;
+		}
+		lastWaited = false;
+		paced++;
+		return now;
+	}
+
+	private static long waitUntil (long until) {
+		long now = System.nanoTime();
+		while (until - now > SPIN_NANOS) {
+			LockSupport.parkNanos(until - now - SPIN_NANOS);
+			now = System.nanoTime();
+		}
+		while (until - now > 0) {
+			Thread.onSpinWait();
+			now = System.nanoTime();
+		}
+		return now;
+	}
+
+	// packets per second between back to back waits, see stats
+	public double achievedRate () {
+		return intervalNanos > 0 ? intervals * 1e9 / intervalNanos : 0;
+	}
+	// mean target rate over those same gaps
+	public double targetRate () {
+		return intervals > 0 ? intervalRates / intervals : 0;
+	}
+	// mean ns a wait overshot the time it was for
+	public double lateness () {
+		return waited > 0 ? (double)lateNanos / waited : 0;
+	}
+	public long paced () {
+		return paced;
+	}
+	public long waited () {
+		return waited;
+	}
+}
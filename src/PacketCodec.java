@@ -0,0 +1,137 @@
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Frames and checks packets in place. Every packet is 4B CRC over the rest of it, then 1B
+ * CTRL and that CTRL's fields. Encoders write into a buffer the caller owns and seal it,
+ * leaving it ready to send from 0; checks run over a buffer as it was received. The
+ * checksum goes straight over the buffer's range, heap or direct, so nothing is allocated
+ * per packet. An instance is not thread safe, so each thread that frames or checks
+ * packets keeps its own.
+ *
+ * The checksum is CRC32 unless both ends agree on CRC32C in the handshake, which most CPUs
+ * compute in hardware. SYNs and SACKs always carry CRC32, so a SYN resent after the switch,
+ * or a late SACK, still checks out.
+ *
+ * The SYN, SACK, DATA and ACK encoders write the layouts of the advanced FileSender and
+ * FileReceiver, see there. Anything else is framed with begin, the fields, then seal.
+ */
+public class PacketCodec {
+
+	public static final int CHECKSUM_SIZE = 4;
+	public static final int CTRL_INDEX = 4;
+	public static final int FIN_SIZE = 5;
+	public static final byte CTRL_FIN = -1;
+	public static final byte CTRL_DAT = 0; // ACKs too
+	public static final byte CTRL_SYN = 1; // SACKs too
+
+	private final CRC32 handshake;
+	private Checksum agreed; // everything but SYNs and SACKs
+
+	public PacketCodec () {
+		handshake = new CRC32();
+		agreed = handshake;
+	}
+
+	// once CRC32C is agreed, before the first pkt after the SACK
+	public void useCrc32c () {
+		agreed = new CRC32C();
+	}
+	public boolean isCrc32c () {
+		return agreed instanceof CRC32C;
+	}
+
+	// clears pkt and writes CTRL. the fields go on from its position, then seal
+	public ByteBuffer begin (ByteBuffer pkt, byte ctrl) {
+		pkt.clear().position(CTRL_INDEX);
+		return pkt.put(ctrl);
+	}
+	// a packet written from 0 up to its position: flipped, with its checksum in front
+	public ByteBuffer seal (ByteBuffer pkt) {
+		pkt.flip().position(CTRL_INDEX);
+		final Checksum checksum = of(pkt);
+		checksum.reset();
+		checksum.update(pkt);
+		pkt.putInt(0, (int)checksum.getValue()).rewind();
+		return pkt;
+	}
+	// the same for a header that goes gathered with payload, which is left as it was
+	public ByteBuffer seal (ByteBuffer header, ByteBuffer payload) {
+		header.flip().position(CTRL_INDEX);
+		final Checksum checksum = of(header);
+		checksum.reset();
+		checksum.update(header);
+		final int at = payload.position();
+		checksum.update(payload);
+		payload.position(at);
+		header.putInt(0, (int)checksum.getValue()).rewind();
+		return header;
+	}
+
+	public ByteBuffer syn (ByteBuffer pkt, long fileSize, int dataSize, int ranges, int range,
+			byte kind, byte flags, long source, int session, byte[] path) {
+		begin(pkt, CTRL_SYN).putLong(fileSize).putInt(dataSize).put((byte)ranges).put((byte)range)
+				.put(kind).put(flags).putLong(source).putInt(session).put(path);
+		return seal(pkt);
+	}
+	// result -1 for a failure. held is what a success goes on with, if anything
+	public ByteBuffer sack (ByteBuffer pkt, byte result, SackTracker held) {
+		begin(pkt, CTRL_SYN).put(result);
+		if (held != null) {
+			held.encode(pkt);
+		}
+		return seal(pkt);
+	}
+	// payload is consumed
+	public ByteBuffer data (ByteBuffer pkt, long seqN, ByteBuffer payload) {
+		begin(pkt, CTRL_DAT).putLong(seqN).put(payload);
+		return seal(pkt);
+	}
+	// header only, to go gathered with payload
+	public ByteBuffer dataHeader (ByteBuffer header, long seqN, ByteBuffer payload) {
+		begin(header, CTRL_DAT).putLong(seqN);
+		return seal(header, payload);
+	}
+	public ByteBuffer ack (ByteBuffer pkt, SackTracker received) {
+		begin(pkt, CTRL_DAT);
+		received.encode(pkt);
+		received.encodeDuplicates(pkt);
+		return seal(pkt);
+	}
+	public ByteBuffer fin (ByteBuffer pkt) {
+		return seal(begin(pkt, CTRL_FIN));
+	}
+
+	// a packet from 0 to its limit, left at 0
+	public boolean valid (ByteBuffer pkt) {
+		if (pkt.limit() <= CTRL_INDEX) {
+			return false;
+		}
+		pkt.position(CTRL_INDEX);
+		final Checksum checksum = of(pkt);
+		checksum.reset();
+		checksum.update(pkt);
+		pkt.rewind();
+		return pkt.getInt(0) == (int)checksum.getValue();
+	}
+	// a packet scattered into a header and a payload, both left at 0
+	public boolean valid (ByteBuffer[] pkt) {
+		if (pkt[0].limit() <= CTRL_INDEX) {
+			return false;
+		}
+		pkt[0].position(CTRL_INDEX);
+		final Checksum checksum = of(pkt[0]);
+		checksum.reset();
+		checksum.update(pkt[0]);
+		checksum.update(pkt[1]);
+		pkt[0].rewind();
+		pkt[1].rewind();
+		return pkt[0].getInt(0) == (int)checksum.getValue();
+	}
+
+	private Checksum of (ByteBuffer pkt) {
+		return pkt.get(CTRL_INDEX) == CTRL_SYN ? handshake : agreed;
+	}
+}
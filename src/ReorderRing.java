@@ -0,0 +1,110 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single producer, single consumer reorder buffer. The producer (receive loop) offers
+ * packets in any order, the consumer (writer) takes them back in sequence from the floor.
+ * Each slot is published with a volatile store, so nothing else is shared per packet.
+ * The consumer parks only when the slot at the floor is empty, and the producer wakes
+ * it only when it fills exactly that slot.
+ */
+public class ReorderRing<V> {
+
+	public static final int ACCEPTED = 0;
+	public static final int DUPLICATE = 1;
+	public static final int FULL = 2; // too far above the floor, try again later
+
+	private final AtomicReferenceArray<V> slots;
+	private final int mask;
+	private volatile long floor; // next seqN to take. written by the consumer only
+	private volatile Thread waiter; // consumer, while parked
+
+	// capacity must be a power of two
+	public ReorderRing (int capacity) {
+		if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+		}
+		slots = new AtomicReferenceArray<>(capacity);
+		mask = capacity - 1;
+		floor = 0;
+	}
+
+	public long floor () {
+		return floor;
+	}
+	// before first use, the sequence starts at seqN, for a resumed transfer
+	public void skipTo (long seqN) {
+		floor = seqN;
+	}
+
+	// producer only
+	public int offer (long seqN, V value) {
+		final long f = floor;
+		if (seqN < f) {
+			return DUPLICATE;
+		}
+		if (seqN - f > mask) {
+			return FULL;
+		}
+		final int i = (int)(seqN & mask);
+		if (slots.get(i) != null) {
+			return DUPLICATE;
+		}
+		slots.set(i, value);
+		// the consumer raises the floor before emptying a slot. if it has passed seqN and
+		// left our value behind, this was a duplicate that slipped into the emptied slot.
+		// nothing above can alias the slot, as only we insert.
+		final long now = floor;
+		if (seqN < now) {
+			if (slots.get(i) == value) {
+				slots.lazySet(i, null);
+				return DUPLICATE;
+			}
+			return ACCEPTED; // taken already
+		}
+		if (seqN == now) {
+			final Thread w = waiter;
+			if (w != null) {
+				LockSupport.unpark(w);
+			}
+		}
+		return ACCEPTED;
+	}
+
+	// consumer only. next value in sequence, or null if it has not arrived
+	public V poll () {
+		final long f = floor;
+		final int i = (int)(f & mask);
+		final V value = slots.get(i);
+		if (value == null) {
+			return null;
+		}
+		floor = f + 1; // floor first, see offer
+		slots.lazySet(i, null);
+		return value;
+	}
+
+	// whether the slot at the floor is filled, so poll would return it
+	public boolean ready () {
+		return slots.get((int)(floor & mask)) != null;
+	}
+
+	// consumer only. parks until the slot at the floor is filled
+	public void await () {
+		waiter = Thread.currentThread();
+		while (slots.get((int)(floor & mask)) == null) {
+			LockSupport.park(this);
+		}
+		waiter = null;
+	}
+
+	// scans the whole ring, for sanity checks only
+	public boolean isEmpty () {
+		for (int i = 0; i <= mask; i++) {
+			if (slots.get(i) != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,74 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * One in-flight packet buffer of the advanced FileSender, reused for every send and resend
+ * of whatever seqN it carries. It is also the packet's retransmission timer in the wheel.
+ * In mmap mode the buffer is just the header, gathered on send with a view of the mapped
+ * source. A task keeps its view for as long as it sends from the same window, so moving it
+ * to the next packet only sets the view's bounds.
+ */
+public class ResendTimerTask extends TimingWheel.Entry {
+	private long seqN;
+	private ByteBuffer pkt; // whole packet, or just the header in mmap mode
+	private final ByteBuffer[] gather; // header + mapped payload
+	private ByteBuffer window; // mmap: the window view was made from
+	private ByteBuffer view;
+	private long sentAt; // first transmission
+	private boolean resent;
+	public ResendTimerTask (ByteBuffer pkt) {
+		super();
+		this.pkt = pkt;
+		gather = new ByteBuffer[] {pkt, null};
+		seqN = -1;
+	}
+	public ByteBuffer getPayload () {
+		return gather[1];
+	}
+	public void setPayload (ByteBuffer payload) {
+		gather[1] = payload;
+	}
+	// mmap: the payload is [from, to) of window. a view is only made for a new window
+	public ByteBuffer setMapped (ByteBuffer window, int from, int to) {
+		if (window != this.window) {
+			this.window = window; // kept alive, and so mapped, while a resend may need it
+			view = window.duplicate();
+		}
+		view.limit(to).position(from).mark();
+		gather[1] = view;
+		return view;
+	}
+	// one datagram: the whole packet, or its header gathered with the payload. left ready
+	// for a resend
+	public void writeTo (GatheringByteChannel channel) throws IOException {
+		if (gather[1] == null) {
+			channel.write(pkt);
+		} else {
+			channel.write(gather);
+			gather[1].reset();
+		}
+		pkt.rewind();
+	}
+	public long getSeqN () {
+		return seqN;
+	}
+	public ByteBuffer getPkt () {
+		return pkt;
+	}
+	public void setSeqN (long sn) {
+		seqN = sn;
+	}
+	public long getSentAt () {
+		return sentAt;
+	}
+	public void setSentAt (long t) {
+		sentAt = t;
+	}
+	public boolean isResent () {
+		return resent;
+	}
+	public void setResent (boolean r) {
+		resent = r;
+	}
+}
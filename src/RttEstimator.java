@@ -0,0 +1,66 @@
+/**
+ * Retransmission timeout from measured round trips (Jacobson/Karels, RFC 6298):
+ *   SRTT <- 7/8 SRTT + 1/8 R,  RTTVAR <- 3/4 RTTVAR + 1/4 |SRTT - R|,  RTO = SRTT + 4 RTTVAR
+ * clamped to [rft.rto.min, rft.rto.max] microseconds. Callers follow Karn's rule and only
+ * sample packets that were sent once; a timeout doubles the RTO until the next clean sample.
+ * All times in nanoseconds. Samples and backoffs may come from different threads.
+ */
+public class RttEstimator {
+
+	public static final long MIN_RTO = Long.getLong("rft.rto.min", 1000) * 1000; // us -> ns
+	public static final long MAX_RTO = Long.getLong("rft.rto.max", 1000*1000) * 1000;
+
+	private long srtt;
+	private long rttvar;
+	private long lastBackoff;
+	private volatile long rto;
+
+	public RttEstimator (long initialRto) {
+		srtt = -1; // no sample yet
+		rttvar = 0;
+		rto = clamp(initialRto);
+		lastBackoff = Long.MIN_VALUE;
+	}
+
+	public synchronized void sample (long rtt) {
+		if (rtt <= 0) {
+			return;
+		}
+		if (srtt < 0) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+		} else {
+			rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+			srtt += (rtt - srtt) / 8;
+		}
+		rto = clamp(srtt + 4*rttvar);
+	}
+
+	// doubles the RTO, at most once per loss episode however many packets time out together
+	public synchronized void backoff (long now) {
+		final long current = rto;
+		if (lastBackoff != Long.MIN_VALUE && now - lastBackoff < current / 2) {
+			return;
+		}
+		lastBackoff = now;
+		rto = clamp(current * 2);
+	}
+
+	public long rto () {
+		return rto;
+	}
+	// rounded up, for socket timeouts
+	public int rtoMillis () {
+		return (int)Math.max(1, (rto + 999999) / 1000000);
+	}
+	public synchronized long srtt () {
+		return srtt;
+	}
+	public synchronized long rttvar () {
+		return rttvar;
+	}
+
+	private static long clamp (long t) {
+		return Math.max(MIN_RTO, Math.min(MAX_RTO, t));
+	}
+}
@@ -0,0 +1,165 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks which sequence numbers the receiver holds, as a cumulative floor
+ * (every seqN below it has arrived) plus a ring bitmap of the window above it.
+ * Encodes itself into the body of a selective ACK:
+ *   8B FLOOR, 1B NUMRANGES, NUMRANGES * (4B START, 4B END)   (relative to FLOOR, END exclusive)
+ * Ranges never reach a window past the floor, so 32-bit offsets cover them. An ACK then
+ * reports the seqNs that arrived again since the last one, as TCP's D-SACK (RFC 2883) does:
+ *   1B NUMDUPS, NUMDUPS * 8B SEQN
+ *
+ * One thread marks, any other thread may encode concurrently. A bit is cleared
+ * before the floor passes it and is only reused by a seqN a whole window higher,
+ * so a concurrent encode can under-report but never claims a missing seqN.
+ * Duplicates go from the marking thread to the one encoding them through a ring.
+ */
+public class SackTracker {
+
+	public static final int MAX_RANGES = 64;
+	public static final int RANGE_SIZE = 8;
+	public static final int HEADER_SIZE = 9; // floor + numranges
+	public static final int MAX_DUPS = 16; // in one ACK
+	public static final int DUPS_SIZE = 1 + MAX_DUPS * 8;
+	private static final int DUP_RING = 1024;
+
+	private final AtomicLongArray bits;
+	private final int mask;
+	private volatile long floor;
+	private volatile long highest;
+	private final long[] dups;
+	private volatile long dupsIn; // written by the marking thread
+	private volatile long dupsOut; // by the encoding one
+
+	// window must be a power of two, and at least 64
+	public SackTracker (int window) {
+		if (window < 64 || Integer.bitCount(window) != 1) {
+			throw new IllegalArgumentException("window must be a power of two >= 64: " + window);
+		}
+		bits = new AtomicLongArray(window >>> 6);
+		mask = window - 1;
+		floor = 0;
+		highest = -1;
+		dups = new long[DUP_RING];
+		dupsIn = 0;
+		dupsOut = 0;
+	}
+
+	// records seqN. false if already held, or too far above the floor to track yet.
+	public boolean mark (long seqN) {
+		long f = floor;
+		if (seqN < f || seqN - f > mask) {
+			return false;
+		}
+		final int i = (int)(seqN & mask);
+		final long word = bits.get(i >>> 6);
+		final long bit = 1L << i;
+		if ((word & bit) != 0) {
+			return false;
+		}
+		bits.lazySet(i >>> 6, word | bit);
+		if (seqN > highest) {
+			highest = seqN;
+		}
+		// slide the floor over the contiguous run, freeing the bits behind it
+		while (isSet(f)) {
+			clear(f);
+			f++;
+		}
+		floor = f;
+		return true;
+	}
+
+	public long floor () {
+		return floor;
+	}
+	public long highest () {
+		return highest;
+	}
+	// whether mark would take seqN: at or above the floor and within the window
+	public boolean fits (long seqN) {
+		final long f = floor;
+		return seqN >= f && seqN - f <= mask;
+	}
+	// whether seqN has arrived, as far as the window can tell
+	public boolean holds (long seqN) {
+		final long f = floor;
+		return seqN < f || seqN - f <= mask && isSet(seqN);
+	}
+	// a fresh tracker starts at seqN, every one below it held, for a resumed transfer
+	public void skipTo (long seqN) {
+		floor = seqN;
+		highest = seqN - 1;
+	}
+
+	// writes FLOOR, NUMRANGES and the ranges at the buffer's position. returns number of ranges.
+	public int encode (ByteBuffer ack) {
+		final long f = floor;
+		final long last = Math.min(highest, f + mask);
+		final int countIndex = ack.position() + 8;
+		ack.putLong(f).put((byte)0);
+		int ranges = 0;
+		long seqN = f + 1;
+		while (seqN <= last && ranges < MAX_RANGES) {
+			seqN = nextSet(seqN, last);
+			if (seqN < 0) {
+				break;
+			}
+			final long start = seqN;
+			while (seqN <= last && isSet(seqN)) {
+				seqN++;
+			}
+			ack.putInt((int)(start - f)).putInt((int)(seqN - f));
+			ranges++;
+		}
+		ack.put(countIndex, (byte)ranges);
+		return ranges;
+	}
+
+	// seqN arrived again, for the next ACK to report. dropped if the ring is full
+	public void duplicate (long seqN) {
+		final long in = dupsIn;
+		if (in - dupsOut == DUP_RING) {
+			return;
+		}
+		dups[(int)(in & (DUP_RING - 1))] = seqN;
+		dupsIn = in + 1; // publishes the slot
+	}
+
+	// writes NUMDUPS and the duplicates not yet reported, at most MAX_DUPS, at the buffer's
+	// position. returns their number.
+	public int encodeDuplicates (ByteBuffer ack) {
+		long out = dupsOut;
+		final int n = (int)Math.min(dupsIn - out, MAX_DUPS);
+		ack.put((byte)n);
+		for (int d = 0; d < n; d++, out++) {
+			ack.putLong(dups[(int)(out & (DUP_RING - 1))]);
+		}
+		dupsOut = out;
+		return n;
+	}
+
+	// first set seqN in [from, last], or -1. skips empty words.
+	private long nextSet (long from, long last) {
+		long seqN = from;
+		while (seqN <= last) {
+			final int i = (int)(seqN & mask);
+			final long word = bits.get(i >>> 6) >>> (i & 63);
+			if (word != 0) {
+				seqN += Long.numberOfTrailingZeros(word);
+				return seqN <= last ? seqN : -1;
+			}
+			seqN += 64 - (i & 63);
+		}
+		return -1;
+	}
+	private boolean isSet (long seqN) {
+		final int i = (int)(seqN & mask);
+		return (bits.get(i >>> 6) & (1L << i)) != 0;
+	}
+	private void clear (long seqN) {
+		final int i = (int)(seqN & mask);
+		bits.lazySet(i >>> 6, bits.get(i >>> 6) & ~(1L << i));
+	}
+}
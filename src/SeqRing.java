@@ -0,0 +1,58 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Map from sequence number to value for a sliding window of seqNs, stored in a ring
+ * indexed by seqN mod capacity. No boxing, no hashing and nothing allocated after
+ * construction. Slots are read and written atomically, so one thread may insert
+ * while another removes.
+ *
+ * The ring does not remember keys: callers keep every live seqN within one capacity
+ * of each other, so that a slot can only ever hold the seqN the caller asks about.
+ */
+public class SeqRing<V> {
+
+	private final AtomicReferenceArray<V> slots;
+	private final int mask;
+
+	// capacity must be a power of two
+	public SeqRing (int capacity) {
+		if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+		}
+		slots = new AtomicReferenceArray<>(capacity);
+		mask = capacity - 1;
+	}
+
+	public int capacity () {
+		return mask + 1;
+	}
+
+	public V get (long seqN) {
+		return slots.get((int)(seqN & mask));
+	}
+	public void put (long seqN, V value) {
+		slots.set((int)(seqN & mask), value);
+	}
+	// false if the slot is already taken
+	public boolean putIfAbsent (long seqN, V value) {
+		return slots.compareAndSet((int)(seqN & mask), null, value);
+	}
+
+	public V remove (long seqN) {
+		return slots.getAndSet((int)(seqN & mask), null);
+	}
+	// removes only if the slot still holds expected. true if it did.
+	public boolean remove (long seqN, V expected) {
+		return slots.compareAndSet((int)(seqN & mask), expected, null);
+	}
+
+	// scans the whole ring, for sanity checks only
+	public boolean isEmpty () {
+		for (int i = 0; i <= mask; i++) {
+			if (slots.get(i) != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
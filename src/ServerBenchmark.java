@@ -0,0 +1,147 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Sessions per host and latency of the receiver server under each execution model:
+ *   selector          one Selector loop thread, ordered writes on a shared writer pool
+ *   threads           a listener chain, every session on its own platform threads
+ *   threads+virtual   the same, on virtual threads (JDK 21+, platform threads before)
+ * Each server is a child JVM, sampled from /proc for its thread count and peak RSS, while
+ * this JVM runs every sender at once and times each from start to FIN.
+ *
+ *   java ServerBenchmark [sessions=64] [bytes=1000000] [port=9300]
+ */
+public class ServerBenchmark {
+
+	private static final String[][] MODES = {
+		{"selector", "-Drft.server=selector"},
+		{"threads", "-Drft.server=threads"},
+		{"threads+virtual", "-Drft.server=threads", "-Drft.threads=virtual"},
+	};
+	private static final int SAMPLE_INTERVAL = 20; // ms
+	private static final PrintStream OUT = System.out;
+
+	public static void main (String[] args) throws Exception {
+		final int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		final int bytes = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : 9300;
+
+		final Path dir = Files.createTempDirectory("rft-bench");
+		final Path[] src = new Path[sessions];
+		final Random random = new Random(1);
+		for (int i = 0; i < sessions; i++) {
+			final byte[] data = new byte[bytes + i];
+			random.nextBytes(data);
+			src[i] = Files.write(dir.resolve("src" + i), data);
+		}
+
+		log(sessions + " concurrent sessions of ~" + bytes + " bytes");
+		log(String.format("%-16s %8s %10s %9s %9s %9s %9s %8s %6s",
+				"mode", "threads", "peak RSS", "total ms", "sess/s", "p50 ms", "p99 ms", "max ms", "ok"));
+		for (String[] mode : MODES) {
+			run(mode, src, dir, port++);
+		}
+	}
+
+	private static void run (String[] mode, Path[] src, Path dir, int port) throws Exception {
+		final List<String> command = new ArrayList<String>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		command.addAll(Arrays.asList(mode).subList(1, mode.length));
+		command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "FileReceiver", "" + port));
+		final Process server = new ProcessBuilder(command)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+				.redirectErrorStream(true)
+				.start();
+		final Sampler sampler = new Sampler(server.pid());
+		final Thread sampling = new Thread(sampler);
+		sampling.setDaemon(true);
+		sampling.start();
+		Thread.sleep(1000); // let it bind
+
+		final int n = src.length;
+		final Path[] dst = new Path[n];
+		final long[] latency = new long[n];
+		final CountDownLatch start = new CountDownLatch(1);
+		final ExecutorService senders = Executors.newFixedThreadPool(n);
+		final List<Future<?>> done = new ArrayList<Future<?>>();
+		for (int i = 0; i < n; i++) {
+			final int s = i;
+			dst[s] = dir.resolve(mode[0].replace('+', '-') + s);
+			done.add(senders.submit(() -> {
+				start.await();
+				final long t = System.nanoTime();
+				FileSender.main(new String[] {"localhost", "" + port, src[s].toString(), dst[s].toString()});
+				latency[s] = System.nanoTime() - t;
+				return null;
+			}));
+		}
+
+		System.setOut(new PrintStream(OutputStream.nullOutputStream())); // senders log per packet
+		final long t = System.nanoTime();
+		start.countDown();
+		try {
+			for (Future<?> f : done) {
+				f.get();
+			}
+		} finally {
+			System.setOut(OUT);
+		}
+		final long total = System.nanoTime() - t;
+		senders.shutdown();
+		Thread.sleep(200); // last writes and FINs
+		sampler.stop();
+		server.destroy();
+		server.waitFor();
+
+		int ok = 0;
+		for (int i = 0; i < n; i++) {
+			if (Files.exists(dst[i]) && Files.mismatch(src[i], dst[i]) == -1) {
+				ok++;
+			}
+			Files.deleteIfExists(dst[i]);
+		}
+		Arrays.sort(latency);
+		log(String.format("%-16s %8d %7d KB %9.1f %9.1f %9.1f %9.1f %8.1f %3d/%d",
+				mode[0], sampler.peakThreads, sampler.peakRss, total / 1e6, n * 1e9 / total,
+				latency[n / 2] / 1e6, latency[Math.min(n - 1, n * 99 / 100)] / 1e6, latency[n - 1] / 1e6, ok, n));
+	}
+
+	// peak thread count and peak RSS of a process, from /proc/<pid>/status
+	private static class Sampler implements Runnable {
+		private final Path status;
+		private volatile boolean running = true;
+		volatile int peakThreads;
+		volatile long peakRss; // KB
+
+		Sampler (long pid) {
+			status = Paths.get("/proc", "" + pid, "status");
+		}
+
+		public void run () {
+			while (running) {
+				try {
+					for (String line : Files.readAllLines(status)) {
+						if (line.startsWith("Threads:")) {
+							peakThreads = Math.max(peakThreads, Integer.parseInt(line.substring(8).trim()));
+						} else if (line.startsWith("VmHWM:")) {
+							peakRss = Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+						}
+					}
+					Thread.sleep(SAMPLE_INTERVAL);
+				} catch (IOException | InterruptedException e) {
+					return; // exited, or no /proc here
+				}
+			}
+		}
+
+		void stop () {
+			running = false;
+		}
+	}
+
+	private static void log (Object s) {
+		OUT.println(s);
+	}
+}
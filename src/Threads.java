@@ -0,0 +1,45 @@
+import java.lang.reflect.Method;
+
+/**
+ * Where the receiver's threads come from. With -Drft.threads=virtual they are virtual
+ * threads, so a session's blocking reads, parks and writes cost no OS thread while
+ * waiting. Virtual threads need JDK 21, and are looked up reflectively so this still
+ * builds and runs on older JDKs, which get platform threads.
+ */
+public class Threads {
+
+	private static final Object BUILDER; // Thread.Builder.OfVirtual, or null
+	private static final Method UNSTARTED;
+
+	static {
+		Object builder = null;
+		Method unstarted = null;
+		if ("virtual".equals(System.getProperty("rft.threads"))) {
+			try {
+				builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+			} catch (ReflectiveOperationException e) {
+				System.out.println("virtual threads need JDK 21+, using platform threads");
+				builder = null;
+			}
+		}
+		BUILDER = builder;
+		UNSTARTED = unstarted;
+	}
+
+	public static boolean virtual () {
+		return BUILDER != null;
+	}
+
+	// unstarted, like new Thread(task). virtual threads are always daemons
+	public static Thread create (Runnable task) {
+		if (BUILDER != null) {
+			try {
+				return (Thread)UNSTARTED.invoke(BUILDER, task);
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return new Thread(task);
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * Hashed timing wheel for retransmission timers. Entries are intrusive and
+ * reusable, so arming, re-arming and cancelling are O(1) and allocate nothing.
+ * Not thread safe: owned and driven by a single thread (the sender loop),
+ * which calls poll with the current time to collect expired entries.
+ */
+public class TimingWheel {
+
+	public static class Entry {
+		private Entry prev;
+		private Entry next;
+		private long deadline; // in ticks
+		private boolean linked;
+
+		public boolean isArmed () {
+			return linked;
+		}
+	}
+
+	private final Entry[] slots; // sentinel heads of circular lists
+	private final int mask;
+	private final long tickNanos;
+	private final long origin;
+	private long cursor; // next tick to expire
+	private Entry scan; // next entry of the cursor's slot to look at, null for the first
+	private int size;
+
+	// slots must be a power of two
+	public TimingWheel (long tickNanos, int slots, long now) {
+		if (slots < 1 || Integer.bitCount(slots) != 1) {
+			throw new IllegalArgumentException("slots must be a power of two: " + slots);
+		}
+		this.slots = new Entry[slots];
+		for (int i = 0; i < slots; i++) {
+			final Entry head = new Entry();
+			head.prev = head;
+			head.next = head;
+			this.slots[i] = head;
+		}
+		mask = slots - 1;
+		this.tickNanos = tickNanos;
+		origin = now;
+		cursor = 0;
+		size = 0;
+	}
+
+	// (re)arms e to expire after delayNanos. rounded up to whole ticks.
+	public void arm (Entry e, long delayNanos, long now) {
+		cancel(e);
+		long deadline = (now - origin + delayNanos + tickNanos - 1) / tickNanos;
+		if (deadline < cursor) {
+			deadline = cursor;
+		}
+		final Entry head = slots[(int)(deadline & mask)];
+		e.deadline = deadline;
+		e.prev = head.prev;
+		e.next = head;
+		head.prev.next = e;
+		head.prev = e;
+		e.linked = true;
+		if (scan == head) { // the cursor's slot was scanned to its end
+			scan = e;
+		}
+		size++;
+	}
+
+	public void cancel (Entry e) {
+		if (!e.linked) {
+			return;
+		}
+		if (e == scan) {
+			scan = e.next;
+		}
+		e.prev.next = e.next;
+		e.next.prev = e.prev;
+		e.prev = null;
+		e.next = null;
+		e.linked = false;
+		size--;
+	}
+
+	// unlinks and returns one entry whose deadline has passed, or null if none. a slot is
+	// scanned once across calls, so draining it is linear in its length
+	public Entry poll (long now) {
+		final long nowTick = (now - origin) / tickNanos;
+		while (size > 0 && cursor <= nowTick) {
+			final Entry head = slots[(int)(cursor & mask)];
+			for (Entry e = scan == null ? head.next : scan; e != head; e = e.next) {
+				if (e.deadline <= cursor) {
+					scan = e; // cancel moves it on past e
+					cancel(e);
+					return e;
+				}
+			}
+			cursor++; // slot holds nothing more due this round
+			scan = null;
+		}
+		if (size == 0 && cursor < nowTick) {
+			cursor = nowTick;
+			scan = null;
+		}
+		return null;
+	}
+
+	public int size () {
+		return size;
+	}
+}
@@ -0,0 +1,110 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Proves the advanced sender's window grows on a path that loses nothing. A few transfers go
+ * over loopback, each to a fresh receiver in a child JVM, and the window the sender ends on
+ * is read off its log. Timeouts there come from ACKs held up by coalescing or a busy host,
+ * and the receiver reports each resend it already had, so none of them may keep the window
+ * down. Exits 1 if the median final window is not above the bound. Any rft.* property given
+ * to this JVM goes to both ends, e.g. -Drft.cc=cubic.
+ *
+ *   java WindowGrowthCheck [bytes=20000000] [runs=3] [bound=20] [port=9500]
+ */
+public class WindowGrowthCheck {
+
+	private static final PrintStream OUT = System.out;
+	private static final Pattern SUMMARY = Pattern.compile("^final window (\\d+) pkts");
+
+	public static void main (String[] args) throws Exception {
+		final int bytes = args.length > 0 ? Integer.parseInt(args[0]) : 20000000;
+		final int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		final int bound = args.length > 2 ? Integer.parseInt(args[2]) : 2 * CongestionControl.INITIAL_WINDOW;
+		int port = args.length > 3 ? Integer.parseInt(args[3]) : 9500;
+
+		final Path dir = Files.createTempDirectory("rft-window");
+		final byte[] data = new byte[bytes];
+		new Random(1).nextBytes(data);
+		final Path src = Files.write(dir.resolve("src"), data);
+		final Path dst = dir.resolve("dst");
+		final List<String> options = new ArrayList<String>();
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith("rft.")) {
+				options.add("-D" + name + "=" + System.getProperty(name));
+			}
+		}
+
+		log(bytes + " bytes over loopback, " + runs + " runs, window must end above " + bound + " pkts"
+				+ (options.isEmpty() ? "" : ", " + String.join(" ", options)));
+		final int[] windows = new int[runs];
+		for (int r = 0; r < runs; r++) {
+			final String summary = run(options, src, dst, port++);
+			final Matcher m = summary == null ? null : SUMMARY.matcher(summary);
+			if (m == null || !m.find()) {
+				log("the sender reported no window, is this the advanced pair?");
+				System.exit(2);
+			}
+			if (!Files.exists(dst) || Files.mismatch(src, dst) != -1) {
+				log("run " + (r + 1) + ": destination differs from the source");
+				System.exit(2);
+			}
+			Files.deleteIfExists(dst);
+			windows[r] = Integer.parseInt(m.group(1));
+			log("run " + (r + 1) + ": " + summary);
+		}
+		Files.deleteIfExists(src);
+		Files.deleteIfExists(dir);
+
+		Arrays.sort(windows);
+		final int median = windows[runs / 2];
+		log("median final window " + median + " pkts: " + (median > bound ? "ok" : "FAILED, at most " + bound));
+		System.exit(median > bound ? 0 : 1);
+	}
+
+	// one transfer to a fresh receiver. returns the sender's final window line
+	private static String run (List<String> options, Path src, Path dst, int port) throws Exception {
+		final List<String> command = new ArrayList<String>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		command.addAll(options);
+		command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "FileReceiver", "" + port));
+		final Process receiver = new ProcessBuilder(command)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+				.redirectErrorStream(true)
+				.start();
+		Thread.sleep(1000); // let it bind
+
+		final SummaryFilter filter = new SummaryFilter();
+		System.setOut(new PrintStream(filter)); // the sender logs per packet
+		try {
+			FileSender.main(new String[] {"localhost", "" + port, src.toString(), dst.toString()});
+		} finally {
+			System.setOut(OUT);
+		}
+		receiver.waitFor(); // last writes and FINs
+		return filter.summary;
+	}
+
+	// keeps the sender's final window line, drops the rest of its log
+	private static class SummaryFilter extends OutputStream {
+		private final StringBuilder line = new StringBuilder();
+		private String summary;
+
+		public void write (int b) {
+			if (b != '\n') {
+				line.append((char)b);
+				return;
+			}
+			if (SUMMARY.matcher(line).find()) {
+				summary = line.toString();
+			}
+			line.setLength(0);
+		}
+	}
+
+	private static void log (Object s) {
+		OUT.println(s);
+	}
+}